@@ -1,7 +1,11 @@
 package com.redhat.lightblue.migrator;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
 
 import org.slf4j.Logger;
@@ -26,8 +30,10 @@ public abstract class AbstractController extends Thread {
     protected final Locking locking;
     protected final Class migratorClass;
     protected final ThreadGroup migratorThreads;
+    // Locks are acquired by the controller thread, and released by migrator threads
     protected final HashSet<String> myLocks=new HashSet<>();
     protected boolean stopped=false;
+    private final Map<String, LightblueClient> clients = new HashMap<>();
 
     public AbstractController(Controller controller,MigrationConfiguration migrationConfiguration,String threadGroupName) {
         this.migrationConfiguration=migrationConfiguration;
@@ -81,19 +87,39 @@ public abstract class AbstractController extends Thread {
     public ActiveExecution lock(String id)
             throws Exception {
         LOGGER.debug("locking {}", id);
-        if (!myLocks.contains(id)) {
-            if (locking.acquire(id, null)) {
+        synchronized (myLocks) {
+            if (myLocks.contains(id)) {
+                return null;
+            }
+        }
+        if (locking.acquire(id, null)) {
+            synchronized (myLocks) {
                 myLocks.add(id);
-                ActiveExecution ae = new ActiveExecution();
-                ae.setMigrationJobId(id);
-                ae.set_id(id);
-                ae.setStartTime(new Date());
-                return ae;
             }
+            return newActiveExecution(id);
         }
         return null;
     }
 
+    /**
+     * Returns an active execution for the job with the given id, starting now
+     */
+    protected ActiveExecution newActiveExecution(String id) {
+        ActiveExecution ae = new ActiveExecution();
+        ae.setMigrationJobId(id);
+        ae.set_id(id);
+        ae.setStartTime(new Date());
+        return ae;
+    }
+
+    /**
+     * Called by a migrator when it is done with its job. Releases the job
+     * lock.
+     */
+    public void releaseJob(String id) {
+        unlock(id);
+    }
+
     public void unlock(String id) {
         LOGGER.debug("Unlocking {}", id);
         try {
@@ -101,10 +127,55 @@ public abstract class AbstractController extends Thread {
         } catch (Exception e) {
             LOGGER.error("Error unlocking {}", id, e);
         }
-        myLocks.remove(id);
+        synchronized (myLocks) {
+            myLocks.remove(id);
+        }
         Breakpoint.checkpoint("MigratorController:unlock");
     }
 
+    /**
+     * Returns the lightblue client for the migration entities
+     */
+    public LightblueClient getLightblueClient() {
+        return lbClient;
+    }
+
+    /**
+     * Returns a lightblue client for the given configuration file, or the
+     * default configuration if null. Clients are created once, and shared
+     * by the migrators of this controller.
+     */
+    public LightblueClient getLightblueClient(String configPath)
+            throws IOException {
+        String key = configPath == null ? "" : configPath;
+        synchronized (clients) {
+            LightblueClient cli = clients.get(key);
+            if (cli == null) {
+                cli = Utils.getLightblueClient(configPath);
+                clients.put(key, cli);
+            }
+            return cli;
+        }
+    }
+
+    /**
+     * Closes the clients shared by the migrators
+     */
+    protected void closeLightblueClients() {
+        synchronized (clients) {
+            for (LightblueClient cli : clients.values()) {
+                if (cli instanceof Closeable) {
+                    try {
+                        ((Closeable) cli).close();
+                    } catch (Exception e) {
+                        LOGGER.warn("Cannot close client:{}", e);
+                    }
+                }
+            }
+            clients.clear();
+        }
+    }
+
     public Migrator createMigrator(MigrationJob mj, ActiveExecution ae)
             throws Exception {
         Migrator migrator = (Migrator) migratorClass.getConstructor(ThreadGroup.class).newInstance(migratorThreads);
@@ -0,0 +1,77 @@
+package com.redhat.lightblue.migrator;
+
+/**
+ * Adjusts a batch size using additive increase, multiplicative decrease
+ * (AIMD) on observed request latencies and errors. After every full batch
+ * that completes within the target latency, the batch size grows by a
+ * constant step. After a batch that is slower than the target latency, or
+ * that fails, the batch size is halved. The batch size always stays between
+ * min and max.
+ *
+ * If target latency is not positive, batch size never changes.
+ */
+public class AdaptiveBatchSize {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyMS;
+    private final int step;
+
+    private double size;
+
+    public AdaptiveBatchSize(int initialSize, int minSize, int maxSize, long targetLatencyMS) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.targetLatencyMS = targetLatencyMS;
+        this.step = Math.max(1, initialSize / 8);
+        this.size = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+    }
+
+    /**
+     * Returns a batch size that never changes
+     */
+    public static AdaptiveBatchSize fixed(int size) {
+        return new AdaptiveBatchSize(size, size, size, 0);
+    }
+
+    public boolean isAdaptive() {
+        return targetLatencyMS > 0 && minSize < maxSize;
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) size;
+    }
+
+    /**
+     * Records a successful batch of the given size that took latencyMS
+     */
+    public synchronized void success(int batchSize, long latencyMS) {
+        if (isAdaptive()) {
+            if (latencyMS > targetLatencyMS) {
+                decrease();
+            } else if (batchSize >= (int) size) {
+                // Only grow if the batch was full, otherwise small
+                // batches would keep growing the size
+                size = Math.min(maxSize, size + step);
+            }
+        }
+    }
+
+    /**
+     * Records a failed batch
+     */
+    public synchronized void failure() {
+        if (isAdaptive()) {
+            decrease();
+        }
+    }
+
+    private void decrease() {
+        size = Math.max(minSize, size / 2);
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(getBatchSize());
+    }
+}
@@ -84,11 +84,15 @@ public class CleanupThread extends Thread {
 
     public void enableStuckJobs(LightblueClient cli, Date enableBefore) {
         DataFindRequest findRequest = new DataFindRequest("migrationJob", null);
-        // Find active jobs that's been sitting for too long
+        // Find active jobs that's been sitting for too long, or
+        // that were claimed a long time ago, but never started
         findRequest.where(Query.and(Query.withValue("status", Query.eq, MigrationJob.STATE_ACTIVE),
-                Query.arrayMatch("jobExecutions",
+                Query.or(Query.arrayMatch("jobExecutions",
                         Query.and(Query.withValue("status", Query.eq, MigrationJob.STATE_ACTIVE),
-                                Query.withValue("actualStartDate", Query.lt, new Literal(enableBefore))))));
+                                Query.withValue("actualStartDate", Query.lt, new Literal(enableBefore)))),
+                        Query.and(Query.withValue("claimDate", Query.lt, new Literal(enableBefore)),
+                                Query.not(Query.arrayMatch("jobExecutions",
+                                        Query.withValue("status", Query.eq, MigrationJob.STATE_ACTIVE)))))));
         findRequest.select(Projection.includeField("_id"));
         findRequest.range(0, 250);
         LOGGER.debug("Re-enabling stuck jobs");
@@ -0,0 +1,369 @@
+package com.redhat.lightblue.migrator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An id-doc map that keeps documents as serialized UTF-8 JSON instead of
+ * trees. A document tree takes several times the memory of its serialized
+ * form, so this is used to hold the documents of a batch when
+ * compactDocuments is set in the migration configuration.
+ *
+ * get() parses the document every time it is called and does not keep the
+ * tree, so the caller holds the tree only as long as it needs it. The tree
+ * is a copy: changing it does not change the document in the map, put it
+ * back for that. The fingerprint of each document is computed when the
+ * document is put into the map, so documents can be checked for equality
+ * without parsing them.
+ *
+ * If a spill directory is given, documents put into the map while the heap
+ * usage is above the spill threshold are written with their identities to
+ * a file in that directory, see IdentitySpillFile. Neither the identity nor
+ * the document of a spilled entry is kept in memory, they are read back from
+ * the file when they are needed. The file is deleted when the map is closed.
+ */
+public class CompactDocumentMap extends AbstractMap<Identity, JsonNode> implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * A serialized document and its fingerprint
+     */
+    public final class CompactDocument {
+        // null if the document is spilled
+        private final byte[] bytes;
+        private final long offset;
+        private final int length;
+        private final long fingerprint;
+
+        private CompactDocument(byte[] bytes, long offset, int length, long fingerprint) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.fingerprint = fingerprint;
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Returns the size of the serialized document in bytes
+         */
+        public int size() {
+            return length;
+        }
+
+        /**
+         * Returns if the document is in the spill file
+         */
+        public boolean isSpilled() {
+            return bytes == null;
+        }
+
+        /**
+         * Parses the document, returning a new tree every time
+         */
+        public JsonNode inflate() {
+            try {
+                return MAPPER.readTree(bytes == null ? spill.read(offset, length) : bytes);
+            } catch (IOException e) {
+                // We serialized it, so it has to parse
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private final Map<Identity, CompactDocument> docs = new HashMap<>();
+    private final FieldPathMatcher exclusions;
+    private final boolean ignoreTimestampMSDiffs;
+    private final FieldPathMatcher timestampPaths;
+
+    private final double spillHeapThreshold;
+    // null if documents are not spilled
+    private final IdentitySpillFile spill;
+    private int spillCount;
+
+    /**
+     * The arguments are used to compute document fingerprints, see
+     * DocumentFingerprint
+     */
+    public CompactDocumentMap(FieldPathMatcher exclusions, boolean ignoreTimestampMSDiffs, FieldPathMatcher timestampPaths) {
+        this(exclusions, ignoreTimestampMSDiffs, timestampPaths, null, 1.0);
+    }
+
+    /**
+     * If spillDirectory is not null, documents are written to a file in
+     * spillDirectory when the fraction of the maximum heap in use is at
+     * least spillHeapThreshold.
+     */
+    public CompactDocumentMap(FieldPathMatcher exclusions,
+                              boolean ignoreTimestampMSDiffs,
+                              FieldPathMatcher timestampPaths,
+                              File spillDirectory,
+                              double spillHeapThreshold) {
+        this.exclusions = exclusions;
+        this.ignoreTimestampMSDiffs = ignoreTimestampMSDiffs;
+        this.timestampPaths = timestampPaths;
+        this.spillHeapThreshold = spillHeapThreshold;
+        this.spill = spillDirectory == null ? null : new IdentitySpillFile(spillDirectory);
+    }
+
+    /**
+     * Serializes the document and stores it. Returns the previous document,
+     * parsed, or null if there wasn't one.
+     */
+    @Override
+    public JsonNode put(Identity id, JsonNode doc) {
+        byte[] bytes;
+        try {
+            bytes = MAPPER.writeValueAsBytes(doc);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        long fingerprint = DocumentFingerprint.of(doc, exclusions, ignoreTimestampMSDiffs, timestampPaths);
+        CompactDocument previous = getCompact(id);
+        JsonNode ret = previous == null ? null : previous.inflate();
+        if (spill != null) {
+            if (previous != null && previous.isSpilled()) {
+                spill.remove(id);
+            }
+            if (IdentitySpillFile.isHeapUsageAbove(spillHeapThreshold)) {
+                docs.remove(id);
+                spill.add(id, bytes, fingerprint);
+                synchronized (this) {
+                    spillCount++;
+                }
+                return ret;
+            }
+        }
+        docs.put(id, new CompactDocument(bytes, 0, bytes.length, fingerprint));
+        return ret;
+    }
+
+    /**
+     * Returns the number of documents written to the spill file
+     */
+    public synchronized int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * Removes the documents and deletes the spill file. The map is empty
+     * after this, so it can still be read by whoever holds it.
+     */
+    @Override
+    public void close() throws IOException {
+        docs.clear();
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    @Override
+    public JsonNode get(Object id) {
+        CompactDocument doc = id instanceof Identity ? getCompact((Identity) id) : null;
+        return doc == null ? null : doc.inflate();
+    }
+
+    /**
+     * Returns the serialized document, or null if there isn't one
+     */
+    public CompactDocument getCompact(Identity id) {
+        CompactDocument doc = docs.get(id);
+        if (doc == null && spill != null) {
+            long record = spill.find(id);
+            if (record >= 0) {
+                doc = getSpilled(record);
+            }
+        }
+        return doc;
+    }
+
+    private CompactDocument getSpilled(long record) {
+        return new CompactDocument(null, spill.getPayloadOffset(record), spill.getPayloadLength(record), spill.getFingerprint(record));
+    }
+
+    @Override
+    public boolean containsKey(Object id) {
+        return docs.containsKey(id)
+                || (spill != null && id instanceof Identity && spill.find((Identity) id) >= 0);
+    }
+
+    /**
+     * Removes the document, and returns it parsed, or null if there wasn't
+     * one
+     */
+    @Override
+    public JsonNode remove(Object id) {
+        CompactDocument doc = docs.remove(id);
+        if (doc == null && spill != null && id instanceof Identity) {
+            long record = spill.find((Identity) id);
+            if (record >= 0) {
+                doc = getSpilled(record);
+                JsonNode ret = doc.inflate();
+                spill.remove((Identity) id);
+                return ret;
+            }
+        }
+        return doc == null ? null : doc.inflate();
+    }
+
+    @Override
+    public int size() {
+        return docs.size() + (spill == null ? 0 : spill.size());
+    }
+
+    /**
+     * Removes the documents. The spill file is kept until the map is closed.
+     */
+    @Override
+    public void clear() {
+        docs.clear();
+        if (spill != null) {
+            spill.clear();
+        }
+    }
+
+    /**
+     * Returns the entries in memory, followed by the spilled entries
+     */
+    private Iterator<Map.Entry<Identity, CompactDocument>> compactEntries() {
+        final Iterator<Map.Entry<Identity, CompactDocument>> heapItr = docs.entrySet().iterator();
+        final Iterator<Long> spillItr = spill == null ? null : spill.records();
+        return new Iterator<Map.Entry<Identity, CompactDocument>>() {
+            // The last entry returned by next(), if it was spilled
+            private Identity lastSpilled;
+
+            @Override
+            public boolean hasNext() {
+                return heapItr.hasNext() || (spillItr != null && spillItr.hasNext());
+            }
+
+            @Override
+            public Map.Entry<Identity, CompactDocument> next() {
+                if (heapItr.hasNext()) {
+                    lastSpilled = null;
+                    return heapItr.next();
+                }
+                if (spillItr == null) {
+                    throw new NoSuchElementException();
+                }
+                long record = spillItr.next();
+                lastSpilled = spill.readIdentity(record);
+                return new AbstractMap.SimpleImmutableEntry<>(lastSpilled, getSpilled(record));
+            }
+
+            @Override
+            public void remove() {
+                if (lastSpilled == null) {
+                    heapItr.remove();
+                } else {
+                    spill.remove(lastSpilled);
+                    lastSpilled = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Spilled identities are read from the spill file as the keys are
+     * iterated
+     */
+    @Override
+    public Set<Identity> keySet() {
+        return new AbstractSet<Identity>() {
+            @Override
+            public Iterator<Identity> iterator() {
+                final Iterator<Map.Entry<Identity, CompactDocument>> itr = compactEntries();
+                return new Iterator<Identity>() {
+                    @Override
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    @Override
+                    public Identity next() {
+                        return itr.next().getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        itr.remove();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object id) {
+                return containsKey(id);
+            }
+
+            @Override
+            public int size() {
+                return CompactDocumentMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Documents are parsed when the entry values are read
+     */
+    @Override
+    public Set<Map.Entry<Identity, JsonNode>> entrySet() {
+        return new AbstractSet<Map.Entry<Identity, JsonNode>>() {
+            @Override
+            public Iterator<Map.Entry<Identity, JsonNode>> iterator() {
+                final Iterator<Map.Entry<Identity, CompactDocument>> itr = compactEntries();
+                return new Iterator<Map.Entry<Identity, JsonNode>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Identity, JsonNode> next() {
+                        final Map.Entry<Identity, CompactDocument> entry = itr.next();
+                        return new Map.Entry<Identity, JsonNode>() {
+                            @Override
+                            public Identity getKey() {
+                                return entry.getKey();
+                            }
+
+                            @Override
+                            public JsonNode getValue() {
+                                return entry.getValue().inflate();
+                            }
+
+                            @Override
+                            public JsonNode setValue(JsonNode value) {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        itr.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactDocumentMap.this.size();
+            }
+        };
+    }
+}
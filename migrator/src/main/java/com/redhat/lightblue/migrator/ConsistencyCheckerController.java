@@ -1,8 +1,11 @@
 package com.redhat.lightblue.migrator;
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +19,7 @@ import com.redhat.lightblue.client.Update;
 import com.redhat.lightblue.client.LightblueException;
 import com.redhat.lightblue.client.Literal;
 import com.redhat.lightblue.client.Projection;
-import com.redhat.lightblue.client.util.ClientConstants;
+import com.redhat.lightblue.client.Sort;
 import com.redhat.lightblue.client.request.data.DataInsertRequest;
 import com.redhat.lightblue.client.request.data.DataUpdateRequest;
 import com.redhat.lightblue.client.request.data.DataFindRequest;
@@ -90,84 +93,198 @@ public class ConsistencyCheckerController extends AbstractController {
     protected List<MigrationJob> createJobs(Date startDate, Date endDate, ActiveExecution ae) throws Exception {
         List<MigrationJob> ret = new ArrayList<MigrationJob>();
         LOGGER.debug("Creating the migrator to setup new jobs");
-        // We setup a new migration job
-        MigrationJob mj = new MigrationJob();
-        mj.setConfigurationName(getMigrationConfiguration().getConfigurationName());
-        mj.setScheduledDate(getNow());
-        mj.setGenerated(true);
-        mj.setStatus(MigrationJob.STATE_AVAILABLE);
-        mj.setConsistencyChecker(new MigrationJob.ConsistencyChecker());
-        mj.getConsistencyChecker().setJobRangeBegin(ClientConstants.getDateFormat().format(startDate));
-        mj.getConsistencyChecker().setJobRangeEnd(ClientConstants.getDateFormat().format(endDate));
-        mj.getConsistencyChecker().setConfigurationName(mj.getConfigurationName());
-        Migrator migrator = createMigrator(mj, ae);
-        mj.setQuery(migrator.createRangeQuery(startDate, endDate));
-        // At this point, mj.query contains the range query
-        LOGGER.debug("Migration job query:{}", mj.getQuery());
-        ret.add(mj);
+        Migrator migrator = createMigrator(null, ae);
+        List<Date[]> ranges;
+        int maxDocs = getMigrationConfiguration().getMaxJobDocuments();
+        if (maxDocs > 0) {
+            // Split the period so no job has more than maxDocs documents
+            ranges = migrator.splitRange(startDate, endDate, maxDocs);
+            LOGGER.debug("Period {}-{} split into {} jobs", startDate, endDate, ranges.size());
+        } else {
+            ranges = new ArrayList<>();
+            ranges.add(new Date[]{startDate, endDate});
+        }
+        for (Date[] range : ranges) {
+            MigrationJob mj = migrator.createRangeJob(range[0], range[1]);
+            mj.setScheduledDate(getNow());
+            // At this point, mj.query contains the range query
+            LOGGER.debug("Migration job query:{}", mj.getQuery());
+            ret.add(mj);
+        }
         return ret;
     }
 
+    /**
+     * Jobs are created and saved in chunks of this size
+     */
+    public static final int JOB_CREATION_CHUNK_SIZE = 500;
+
+    /**
+     * Jobs are inserted in batches of this size, unless jobInsertBatchSize
+     * is set in the configuration
+     */
+    public static final int JOB_INSERT_BATCH_SIZE = 100;
+
+    /**
+     * Existing jobs are read in pages of this size during de-dup
+     */
+    public static final int DEDUP_PAGE_SIZE = 1000;
+
+    private static String rangeKey(String begin, String end) {
+        return begin + "|" + end;
+    }
+
+    /**
+     * Removes the jobs whose range already has an available job, and the
+     * jobs repeating a range earlier in the list. Existing jobs are read with
+     * a single range query on jobRangeBegin covering all the jobs in the
+     * list, and looked up by range.
+     */
     private void filterDups(List<MigrationJob> list) {
         LOGGER.debug("filter dups, {} jobs", list.size());
-        if (!list.isEmpty()) {
-            List<Query> qlist = new ArrayList<>();
-            for (MigrationJob j : list) {
-                MigrationJob.ConsistencyChecker c = j.getConsistencyChecker();
-                if (c != null) {
-                    qlist.add(Query.and(Query.withValue("consistencyChecker.jobRangeBegin", Query.eq, c.getJobRangeBegin()),
-                            Query.withValue("consistencyChecker.jobRangeEnd", Query.eq, c.getJobRangeEnd()),
-                            Query.withValue("consistencyChecker.configurationName", Query.eq, c.getConfigurationName())));
+        String minBegin = null;
+        String maxBegin = null;
+        for (MigrationJob j : list) {
+            MigrationJob.ConsistencyChecker c = j.getConsistencyChecker();
+            if (c != null && c.getJobRangeBegin() != null) {
+                // Range strings are compared as strings by the query,
+                // so find the bounds as strings too
+                if (minBegin == null || c.getJobRangeBegin().compareTo(minBegin) < 0) {
+                    minBegin = c.getJobRangeBegin();
+                }
+                if (maxBegin == null || c.getJobRangeBegin().compareTo(maxBegin) > 0) {
+                    maxBegin = c.getJobRangeBegin();
                 }
             }
-            if (!qlist.isEmpty()) {
-                DataFindRequest req = new DataFindRequest("migrationJob", null);
-                req.where(Query.and(Query.withValue("status", Query.eq, MigrationJob.STATE_AVAILABLE),
-                        Query.or(qlist)));
-                req.select(Projection.includeFieldRecursively("*"));
-                MigrationJob[] dups = null;
-                try {
-                    dups = lbClient.data(req, MigrationJob[].class);
-                } catch (Exception e) {
-                    LOGGER.error("Cannot de-dup", e);
+        }
+        if (minBegin == null) {
+            return;
+        }
+        Set<String> existing = new HashSet<>();
+        DataFindRequest req = new DataFindRequest("migrationJob", null);
+        req.where(Query.and(Query.withValue("consistencyChecker.configurationName", Query.eq, migrationConfiguration.getConfigurationName()),
+                Query.withValue("consistencyChecker.jobRangeBegin", Query.gte, minBegin),
+                Query.withValue("consistencyChecker.jobRangeBegin", Query.lte, maxBegin),
+                Query.withValue("status", Query.eq, MigrationJob.STATE_AVAILABLE)));
+        req.select(Projection.includeFieldRecursively("consistencyChecker"));
+        req.sort(Sort.asc("consistencyChecker.jobRangeBegin"), Sort.asc("_id"));
+        try {
+            for (int from = 0;; from += DEDUP_PAGE_SIZE) {
+                req.range(from, from + DEDUP_PAGE_SIZE - 1);
+                MigrationJob[] jobs = lbClient.data(req, MigrationJob[].class);
+                if (jobs == null) {
+                    break;
                 }
-                if (dups != null) {
-                    LOGGER.debug("There are {} dups", dups.length);
-                    for (MigrationJob d : dups) {
-                        for (MigrationJob trc : list) {
-                            if (trc.getConsistencyChecker().getJobRangeBegin().equals(d.getConsistencyChecker().getJobRangeBegin())
-                                    && trc.getConsistencyChecker().getJobRangeEnd().equals(d.getConsistencyChecker().getJobRangeEnd())) {
-                                list.remove(trc);
-                                break;
-                            }
-                        }
+                for (MigrationJob d : jobs) {
+                    MigrationJob.ConsistencyChecker c = d.getConsistencyChecker();
+                    if (c != null) {
+                        existing.add(rangeKey(c.getJobRangeBegin(), c.getJobRangeEnd()));
                     }
                 }
+                if (jobs.length < DEDUP_PAGE_SIZE) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Cannot de-dup", e);
+        }
+        LOGGER.debug("There are {} existing jobs in range {}-{}", existing.size(), minBegin, maxBegin);
+        int n = list.size();
+        for (Iterator<MigrationJob> itr = list.iterator(); itr.hasNext();) {
+            MigrationJob.ConsistencyChecker c = itr.next().getConsistencyChecker();
+            if (c != null && !existing.add(rangeKey(c.getJobRangeBegin(), c.getJobRangeEnd()))) {
+                itr.remove();
             }
         }
+        LOGGER.debug("There are {} dups", n - list.size());
+    }
+
+    /**
+     * Inserts the jobs that are not duplicates, in batches of
+     * jobInsertBatchSize
+     */
+    void batchCreate(List<MigrationJob> mjList) throws LightblueException {
+        List<MigrationJob> jobs = new ArrayList<>(mjList);
+        filterDups(jobs);
+        int batchSize = migrationConfiguration.getJobInsertBatchSize() > 0 ? migrationConfiguration.getJobInsertBatchSize()
+                : JOB_INSERT_BATCH_SIZE;
+        for (int i = 0; i < jobs.size(); i += batchSize) {
+            DataInsertRequest req = new DataInsertRequest("migrationJob", null);
+            req.create(jobs.subList(i, Math.min(i + batchSize, jobs.size())));
+            lbClient.data(req);
+        }
     }
 
-    private void batchCreate(List<MigrationJob> mjList) throws LightblueException {
-        final int batchSize = 100;
-        List<MigrationJob> batch = new ArrayList<>(batchSize);
-        for (MigrationJob mj : mjList) {
-            batch.add(mj);
-            if (batch.size() >= batchSize) {
-                filterDups(batch);
-                if (!batch.isEmpty()) {
-                    DataInsertRequest req = new DataInsertRequest("migrationJob", null);
-                    req.create(batch);
-                    lbClient.data(req);
+    /**
+     * Returns the end of the next job starting at startDate, or null if the
+     * period starting at startDate is not over yet. Normally a job covers one
+     * period. In catch-up mode, when catchUpMaxSpan or catchUpTargetDocuments
+     * is set, consecutive elapsed periods are coalesced into one job: the
+     * number of periods is doubled as long as the job stays within
+     * catchUpMaxSpan and has at most catchUpTargetDocuments source
+     * documents, so a job ends up with between half and all of the target.
+     */
+    protected Date getCatchUpEndDate(Migrator migrator, Date startDate, long period) {
+        Date endDate = getEndDate(startDate, period);
+        if (endDate == null) {
+            return null;
+        }
+        long maxSpan = migrationConfiguration.getCatchUpMaxSpan() == null ? 0
+                : parsePeriod(migrationConfiguration.getCatchUpMaxSpan());
+        int targetDocs = migrationConfiguration.getCatchUpTargetDocuments();
+        if (maxSpan <= period && targetDocs <= 0) {
+            return endDate;
+        }
+        long n = 1;
+        while (true) {
+            long span = 2 * n * period;
+            if (maxSpan > period && span > maxSpan) {
+                break;
+            }
+            // The last period of the longer job must be over too
+            if (getEndDate(new Date(startDate.getTime() + span - period), period) == null) {
+                break;
+            }
+            Date e = new Date(startDate.getTime() + span);
+            if (targetDocs > 0) {
+                int count = migrator.countSourceDocuments(migrator.createRangeQuery(startDate, e));
+                if (count < 0 || count > targetDocs) {
+                    break;
                 }
-                batch.clear();
             }
+            n *= 2;
+            endDate = e;
         }
-        if (batch.size() > 0) {
-            filterDups(batch);
-            if (!batch.isEmpty()) {
-                DataInsertRequest req = new DataInsertRequest("migrationJob", null);
-                req.create(batch);
-                lbClient.data(req);
+        return endDate;
+    }
+
+    /**
+     * Creates jobs for the elapsed periods starting at startDate. Jobs are
+     * inserted in chunks of JOB_CREATION_CHUNK_SIZE, and timestampInitialValue
+     * is saved after every chunk, so a long catch-up does not build all jobs
+     * in memory, and continues from the last chunk if interrupted.
+     */
+    void createJobsUntilNow(Date startDate, long period, ActiveExecution ae) throws Exception {
+        Migrator migrator = createMigrator(null, ae);
+        List<MigrationJob> mjList = new ArrayList<>();
+        Date endDate = getCatchUpEndDate(migrator, startDate, period);
+        while (endDate != null && !stopped) {
+            LOGGER.debug("{} will create a job for period {}-{}", migrationConfiguration.getConfigurationName(), startDate, endDate);
+            mjList.addAll(createJobs(startDate, endDate, ae));
+            migrationConfiguration.setTimestampInitialValue(endDate);
+            startDate = endDate;
+            endDate = getCatchUpEndDate(migrator, startDate, period);
+            if (mjList.size() >= JOB_CREATION_CHUNK_SIZE || endDate == null) {
+                try {
+                    update(mjList);
+                    controller.jobsCreated(migrationConfiguration);
+                } catch (Exception e) {
+                    // timestampInitialValue is reloaded in the next
+                    // run, so we continue from the last saved chunk
+                    LOGGER.error("Cannot create jobs:{}", e, e);
+                    break;
+                }
+                mjList.clear();
             }
         }
     }
@@ -254,21 +371,7 @@ public class ConsistencyCheckerController extends AbstractController {
                                 LOGGER.debug("{} will wait for next period",migrationConfiguration.getConfigurationName());
                             } else {
                                 Breakpoint.checkpoint("CCC:beforeCreateJobs");
-                                List<MigrationJob> mjList=new ArrayList<>();
-                                do {
-                                    LOGGER.debug("{} will create a job for period {}-{}",migrationConfiguration.getConfigurationName(),startDate,endDate);
-                                    mjList.addAll(createJobs(startDate,endDate,ae));
-                                    migrationConfiguration.setTimestampInitialValue(endDate);
-                                    startDate=endDate;
-                                    endDate=getEndDate(startDate,period);
-                                } while(endDate!=null&&!stopped);
-                                if(!mjList.isEmpty()&&!stopped) {
-                                    try {
-                                        update(mjList);
-                                    } catch (Exception e) {
-                                        LOGGER.error("Cannot create jobs:{}",e,e);
-                                    }
-                                }
+                                createJobsUntilNow(startDate, period, ae);
                                 LOGGER.debug("Created all the jobs");
                                 Breakpoint.checkpoint("CCC:afterCreateJobs");
                             }
@@ -294,6 +397,7 @@ public class ConsistencyCheckerController extends AbstractController {
                 }
             }
         }
+        closeLightblueClients();
         Breakpoint.checkpoint("CCC:end");
         LOGGER.warn("Ending controller thread for {}", migrationConfiguration.getConfigurationName());
     }
@@ -0,0 +1,64 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns keys to members using consistent hashing. Each member is placed on
+ * a hash ring at VNODES points, and a key belongs to the member at the first
+ * point at or after the hash of the key. When a member joins or leaves, only
+ * the keys of that member move.
+ */
+public class ConsistentHashRing {
+
+    public static final int VNODES = 64;
+
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+    private final SortedSet<String> members;
+
+    public ConsistentHashRing(Collection<String> members) {
+        this.members = new TreeSet<>(members);
+        for (String member : this.members) {
+            for (int i = 0; i < VNODES; i++) {
+                // On a collision, the smaller member name wins, so all
+                // hosts build the same ring
+                Integer h = hash(member + "#" + i);
+                if (!ring.containsKey(h)) {
+                    ring.put(h, member);
+                }
+            }
+        }
+    }
+
+    public SortedSet<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the member owning the key, or null if there are no members
+     */
+    public String getOwner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * String hash code, spread with the murmur3 finalizer. Job ids differ in
+     * a few characters, so their String hash codes are close to each other.
+     */
+    static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,8 +1,9 @@
 package com.redhat.lightblue.migrator;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,7 +26,8 @@ public class Controller extends Thread {
 
     private final MainConfiguration cfg;
     private final LightblueClient lightblueClient;
-    private final Map<String, MigrationProcess> migrationMap = new HashMap<>();
+    // Read by consistency checker threads
+    private final Map<String, MigrationProcess> migrationMap = new ConcurrentHashMap<>();
     private final ThreadMonitor threadMonitor;
     private boolean stopped=false;
 
@@ -68,10 +70,32 @@ public class Controller extends Thread {
         return cfg;
     }
 
+    /**
+     * Returns a name unique to this migrator process, pid@host. Instances on
+     * different hosts share the same configuration name, so this is used to
+     * tell them apart.
+     */
+    public String getInstanceId() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
     public ThreadMonitor getThreadMonitor() {
         return threadMonitor;
     }
 
+    /**
+     * Called when new jobs are created for a configuration. Wakes up the
+     * migrator controller of the configuration on this node, so it doesn't
+     * wait until its next poll to pick up the jobs.
+     */
+    public void jobsCreated(MigrationConfiguration cfg) {
+        MigrationProcess process = migrationMap.get(cfg.get_id());
+        if (process != null && process.mig != null) {
+            LOGGER.debug("New jobs for {}, waking up migrator controller", cfg.getConfigurationName());
+            process.mig.wakeup();
+        }
+    }
+
     /**
      * Read configurations from the database whose name matches this instance
      * name
@@ -3,9 +3,18 @@ package com.redhat.lightblue.migrator;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,8 +25,10 @@ import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueException;
 import com.redhat.lightblue.client.Projection;
 import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.Sort;
 import com.redhat.lightblue.client.request.data.DataFindRequest;
 import com.redhat.lightblue.client.request.data.DataSaveRequest;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
 import com.redhat.lightblue.client.response.LightblueResponse;
 import com.redhat.lightblue.client.response.LightblueResponseException;
 import com.redhat.lightblue.client.util.JSON;
@@ -31,11 +42,17 @@ public class DefaultMigrator extends Migrator {
     private LightblueClient sourceCli;
     private LightblueClient destCli;
 
+    private ExecutorService fetchExecutor;
+    private ExecutorService saveExecutor;
+
+    private AdaptiveBatchSize fetchBatchSize;
+    private AdaptiveBatchSize saveBatchSize;
+
     public DefaultMigrator(ThreadGroup grp) {
         super(grp);
     }
 
-    private LightblueClient getSourceCli() {
+    private synchronized LightblueClient getSourceCli() {
         try {
             if (sourceCli == null) {
                 sourceCli = getLightblueClient(getMigrationConfiguration().getSourceConfigPath());
@@ -47,7 +64,7 @@ public class DefaultMigrator extends Migrator {
         }
     }
 
-    private LightblueClient getDestCli() {
+    private synchronized LightblueClient getDestCli() {
         try {
             if (destCli == null) {
                 destCli = getLightblueClient(getMigrationConfiguration().getDestinationConfigPath());
@@ -59,14 +76,27 @@ public class DefaultMigrator extends Migrator {
         }
     }
 
+    /**
+     * Returns a request for the source documents of the job, or for those
+     * after the given identity if it is not null
+     */
+    private DataFindRequest createSourceRequest(Identity after) {
+        DataFindRequest sourceRequest = new DataFindRequest(getMigrationConfiguration().getSourceEntityName(),
+                getMigrationConfiguration().getSourceEntityVersion());
+        Query q = Query.query((ContainerNode) JSON.toJsonNode(getMigrationJob().getQuery()));
+        if (after != null) {
+            q = Query.and(q, createAfterQuery(getIdentityFields(), after));
+        }
+        sourceRequest.where(q);
+        sourceRequest.select(Projection.includeFieldRecursively("*"), Projection.excludeField("objectType"));
+        return sourceRequest;
+    }
+
     @Override
     public List<JsonNode> getSourceDocuments() {
         LOGGER.debug("Retrieving source docs");
         try {
-            DataFindRequest sourceRequest = new DataFindRequest(getMigrationConfiguration().getSourceEntityName(),
-                    getMigrationConfiguration().getSourceEntityVersion());
-            sourceRequest.where(Query.query((ContainerNode) JSON.toJsonNode(getMigrationJob().getQuery())));
-            sourceRequest.select(Projection.includeFieldRecursively("*"), Projection.excludeField("objectType"));
+            DataFindRequest sourceRequest = createSourceRequest(null);
             LOGGER.debug("Source docs retrieval req: {}", sourceRequest.getBody());
             JsonNode[] results = getSourceCli().data(sourceRequest, JsonNode[].class);
             LOGGER.debug("There are {} source docs", results.length);
@@ -77,6 +107,61 @@ public class DefaultMigrator extends Migrator {
         }
     }
 
+    /**
+     * Retrieves a page of source documents after the given identity.
+     * Documents are sorted by the identity fields, so the page continues
+     * where the previous one ended even if documents are inserted or deleted
+     * in between.
+     */
+    @Override
+    public List<JsonNode> getSourceDocuments(Identity after, int n) {
+        LOGGER.debug("Retrieving {} source docs after {}", n, after);
+        try {
+            DataFindRequest sourceRequest = createSourceRequest(after);
+            List<Sort> sort = new ArrayList<>();
+            for (String field : getIdentityFields()) {
+                sort.add(Sort.asc(field));
+            }
+            sourceRequest.sort(sort);
+            sourceRequest.range(0, n - 1);
+            LOGGER.debug("Source docs retrieval req: {}", sourceRequest.getBody());
+            JsonNode[] results = getSourceCli().data(sourceRequest, JsonNode[].class);
+            if (results == null) {
+                return new ArrayList<>();
+            }
+            LOGGER.debug("There are {} source docs after {}", results.length, after);
+            return Arrays.asList(results);
+        } catch (Exception e) {
+            LOGGER.error("Error while retrieving source documents:{}", e);
+            throw new RuntimeException("Cannot retrieve source documents:" + e);
+        }
+    }
+
+    /**
+     * Returns a query for the documents sorting after the identity, in the
+     * order of the identity fields: the first field is greater, or the
+     * first field is equal and the second is greater, and so on.
+     */
+    public static Query createAfterQuery(List<String> fields, Identity after) {
+        List<Query> alternatives = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            List<Query> conditions = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                Object v = after.get(j);
+                conditions.add(Query.withValue(fields.get(j), Query.eq, v == null ? null : v.toString()));
+            }
+            Object v = after.get(i);
+            if (v == null) {
+                // Nulls sort first
+                conditions.add(Query.withValue(fields.get(i), Query.neq, (Object) null));
+            } else {
+                conditions.add(Query.withValue(fields.get(i), Query.gt, v.toString()));
+            }
+            alternatives.add(conditions.size() == 1 ? conditions.get(0) : Query.and(conditions));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : Query.or(alternatives);
+    }
+
     @Override
     public List<JsonNode> getDestinationDocuments(Collection<Identity> ids) {
         try {
@@ -86,17 +171,37 @@ public class DefaultMigrator extends Migrator {
                 return destinationDocuments;
             }
 
-            List<Identity> batch = new ArrayList<>();
-            for (Identity id : ids) {
-                batch.add(id);
-                if (batch.size() >= BATCH_SIZE) {
-                    doDestinationDocumentFetch(batch, destinationDocuments);
-                    batch.clear();
+            Iterator<Identity> itr = ids.iterator();
+            int nThreads = getMigrationConfiguration().getDestinationFetchThreads();
+            if (nThreads <= 1) {
+                while (itr.hasNext()) {
+                    destinationDocuments.addAll(doDestinationDocumentFetch(nextBatch(itr, getFetchBatchSize().getBatchSize())));
+                }
+            } else {
+                // The executor has nThreads threads, so at most
+                // nThreads requests are in flight at any time
+                LOGGER.debug("Fetching destination docs using {} threads", nThreads);
+                ExecutorService executor = getFetchExecutor(nThreads);
+                List<Future<List<JsonNode>>> futures = new ArrayList<>();
+                try {
+                    while (itr.hasNext()) {
+                        final List<Identity> x = nextBatch(itr, getFetchBatchSize().getBatchSize());
+                        futures.add(executor.submit(new Callable<List<JsonNode>>() {
+                            @Override
+                            public List<JsonNode> call() throws Exception {
+                                return doDestinationDocumentFetch(x);
+                            }
+                        }));
+                    }
+                    for (Future<List<JsonNode>> f : futures) {
+                        destinationDocuments.addAll(waitFor(f));
+                    }
+                } finally {
+                    // If one of them failed, don't bother with the rest
+                    for (Future<List<JsonNode>> f : futures) {
+                        f.cancel(true);
+                    }
                 }
-            }
-
-            if (!batch.isEmpty()) {
-                doDestinationDocumentFetch(batch, destinationDocuments);
             }
             return destinationDocuments;
         } catch (Exception e) {
@@ -105,8 +210,98 @@ public class DefaultMigrator extends Migrator {
         }
     }
 
-    private void doDestinationDocumentFetch(List<Identity> ids, List<JsonNode> dest)
+    private static <T> List<T> nextBatch(Iterator<T> itr, int n) {
+        List<T> batch = new ArrayList<>(n);
+        while (itr.hasNext() && batch.size() < n) {
+            batch.add(itr.next());
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the batch size used for destination document lookups
+     */
+    public synchronized AdaptiveBatchSize getFetchBatchSize() {
+        if (fetchBatchSize == null) {
+            fetchBatchSize = createBatchSize();
+        }
+        return fetchBatchSize;
+    }
+
+    /**
+     * Returns the batch size used for saving documents
+     */
+    public synchronized AdaptiveBatchSize getSaveBatchSize() {
+        if (saveBatchSize == null) {
+            saveBatchSize = createBatchSize();
+        }
+        return saveBatchSize;
+    }
+
+    private AdaptiveBatchSize createBatchSize() {
+        MigrationConfiguration cfg = getMigrationConfiguration();
+        if (cfg.getTargetBatchLatencyMS() > 0) {
+            return new AdaptiveBatchSize(BATCH_SIZE, cfg.getMinBatchSize(), cfg.getMaxBatchSize(), cfg.getTargetBatchLatencyMS());
+        } else {
+            return AdaptiveBatchSize.fixed(BATCH_SIZE);
+        }
+    }
+
+    private synchronized ExecutorService getFetchExecutor(int nThreads) {
+        if (fetchExecutor == null) {
+            fetchExecutor = createExecutor(nThreads, "fetch");
+        }
+        return fetchExecutor;
+    }
+
+    private synchronized ExecutorService getSaveExecutor(int nThreads) {
+        if (saveExecutor == null) {
+            saveExecutor = createExecutor(nThreads, "save");
+        }
+        return saveExecutor;
+    }
+
+    private ExecutorService createExecutor(int nThreads, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int n = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(getThreadGroup(), r, getName() + ":" + name + "-" + (n++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public void cleanupMigrator() {
+        // Record the batch sizes we ended up with
+        MigrationJobExecution execution = getExecution();
+        if (execution != null) {
+            execution.setFetchBatchSize(getFetchBatchSize().getBatchSize());
+            execution.setSaveBatchSize(getSaveBatchSize().getBatchSize());
+            LOGGER.debug("Final batch sizes: fetch={} save={}", execution.getFetchBatchSize(), execution.getSaveBatchSize());
+        }
+        synchronized (this) {
+            if (fetchExecutor != null) {
+                fetchExecutor.shutdownNow();
+                fetchExecutor = null;
+            }
+            if (saveExecutor != null) {
+                saveExecutor.shutdownNow();
+                saveExecutor = null;
+            }
+        }
+        super.cleanupMigrator();
+    }
+
+    private List<JsonNode> doDestinationDocumentFetch(List<Identity> ids)
             throws Exception {
+        List<JsonNode> dest = new ArrayList<>();
         if (ids != null && !ids.isEmpty()) {
             DataFindRequest destinationRequest = new DataFindRequest(getMigrationConfiguration().getDestinationEntityName(),
                     getMigrationConfiguration().getDestinationEntityVersion());
@@ -125,7 +320,15 @@ public class DefaultMigrator extends Migrator {
             destinationRequest.where(Query.or(requestConditions));
             destinationRequest.select(Projection.includeFieldRecursively("*"), Projection.excludeField("objectType"));
             LOGGER.debug("Fetching destination docs {}", destinationRequest.getBody());
-            JsonNode[] nodes = getDestCli().data(destinationRequest, JsonNode[].class);
+            long start = System.currentTimeMillis();
+            JsonNode[] nodes;
+            try {
+                nodes = getDestCli().data(destinationRequest, JsonNode[].class);
+            } catch (Exception e) {
+                getFetchBatchSize().failure();
+                throw e;
+            }
+            getFetchBatchSize().success(ids.size(), System.currentTimeMillis() - start);
 
             if (nodes != null) {
                 LOGGER.debug("There are {} destination docs", nodes.length);
@@ -134,34 +337,67 @@ public class DefaultMigrator extends Migrator {
                 }
             }
         }
+        return dest;
     }
 
+    /**
+     * Saves the documents in batches, using up to saveThreads concurrent
+     * requests. The result of each batch is recorded in the job
+     * execution. If some documents cannot be saved, the others are still
+     * saved, and a LightblueException listing the failed documents is thrown.
+     */
     @Override
     public List<LightblueResponse> save(List<JsonNode> docs) throws LightblueException {
-        List<LightblueResponse> responses = new ArrayList<>();
-        StringBuilder errorMessage = new StringBuilder();
+        final List<LightblueResponse> responses = Collections.synchronizedList(new ArrayList<LightblueResponse>());
+        final List<SaveBatchResult> results = Collections.synchronizedList(new ArrayList<SaveBatchResult>());
 
-        List<JsonNode> batch = new ArrayList<>();
-        for (JsonNode doc : docs) {
-            batch.add(doc);
-            if (batch.size() >= BATCH_SIZE) {
-                try {
-                    responses.add(saveBatch(batch));
-                } catch (LightblueResponseException ex) {
-                    errorMessage.append(ex.getLightblueResponse().getText());
-                }
-                batch.clear();
+        Iterator<JsonNode> itr = docs.iterator();
+        int nThreads = getMigrationConfiguration().getSaveThreads();
+        if (nThreads <= 1) {
+            while (itr.hasNext()) {
+                saveBisecting(nextBatch(itr, getSaveBatchSize().getBatchSize()), true, responses, results);
+                ping("Saving a batch");
             }
-        }
-        if (!batch.isEmpty()) {
+        } else {
+            ExecutorService executor = getSaveExecutor(nThreads);
+            List<Future<Void>> futures = new ArrayList<>();
             try {
-                responses.add(saveBatch(batch));
-                ping("Saving a batch");
-            } catch (LightblueResponseException ex) {
-                errorMessage.append(ex.getLightblueResponse().getText());
+                while (itr.hasNext()) {
+                    final List<JsonNode> x = nextBatch(itr, getSaveBatchSize().getBatchSize());
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            saveBisecting(x, true, responses, results);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> f : futures) {
+                    waitFor(f);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LightblueException("Interrupted while saving docs");
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                for (Future<Void> f : futures) {
+                    f.cancel(true);
+                }
             }
         }
 
+        StringBuilder errorMessage = new StringBuilder();
+        MigrationJobExecution execution = getExecution();
+        for (SaveBatchResult result : results) {
+            if (execution != null) {
+                execution.addSaveBatchResult(result);
+            }
+            if (result.isFailed()) {
+                LOGGER.error("Cannot save {}: {}", result.getFailedIdentities(), result.getError());
+                errorMessage.append(result.toString()).append('\n');
+            }
+        }
         if (errorMessage.length() > 0) {
             throw new LightblueException("Failed saving docs: " + errorMessage);
         }
@@ -169,12 +405,69 @@ public class DefaultMigrator extends Migrator {
         return responses;
     }
 
+    /**
+     * Saves the documents. If lightblue rejects the save, the documents are
+     * split in two and each half is saved separately, so a bad document
+     * fails only itself, not the whole batch.
+     */
+    private void saveBisecting(List<JsonNode> docs,
+                               boolean fullBatch,
+                               List<LightblueResponse> responses,
+                               List<SaveBatchResult> results) {
+        List<Identity> ids = new ArrayList<>(docs.size());
+        for (JsonNode doc : docs) {
+            ids.add(new Identity(doc, getIdentityFieldPaths()));
+        }
+        long start = System.currentTimeMillis();
+        try {
+            responses.add(saveBatch(docs));
+            getSaveBatchSize().success(docs.size(), System.currentTimeMillis() - start);
+            results.add(new SaveBatchResult(ids, Collections.<Identity>emptyList(), null));
+        } catch (LightblueResponseException ex) {
+            // Only the original batch counts as a failure for the batch
+            // size, otherwise one bad document would shrink it to minimum
+            if (fullBatch) {
+                getSaveBatchSize().failure();
+            }
+            if (docs.size() > 1) {
+                LOGGER.debug("Saving {} docs failed, retrying in halves", docs.size());
+                int half = docs.size() / 2;
+                saveBisecting(docs.subList(0, half), false, responses, results);
+                saveBisecting(docs.subList(half, docs.size()), false, responses, results);
+            } else {
+                results.add(new SaveBatchResult(Collections.<Identity>emptyList(), ids, ex.getLightblueResponse().getText()));
+            }
+        } catch (LightblueException ex) {
+            // Not a problem with the documents, retrying won't help
+            getSaveBatchSize().failure();
+            results.add(new SaveBatchResult(Collections.<Identity>emptyList(), ids, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Counts the source documents with a one-document find, using the match
+     * count of the response
+     */
+    @Override
+    public int countSourceDocuments(String query) {
+        try {
+            DataFindRequest req = new DataFindRequest(getMigrationConfiguration().getSourceEntityName(),
+                    getMigrationConfiguration().getSourceEntityVersion());
+            req.where(Query.query((ContainerNode) JSON.toJsonNode(query)));
+            req.select(Projection.includeField("_id"));
+            req.range(0, 0);
+            LightblueDataResponse resp = getSourceCli().data(req);
+            return resp.parseMatchCount();
+        } catch (Exception e) {
+            LOGGER.error("Cannot count source documents:{}", e);
+            return -1;
+        }
+    }
+
     @Override
     public String createRangeQuery(Date startDate, Date endDate) {
-        StringTokenizer tkz = new StringTokenizer(getMigrationConfiguration().getTimestampFieldName(), ", ");
         List<Query> ql = new ArrayList<>();
-        while (tkz.hasMoreTokens()) {
-            String tok = tkz.nextToken();
+        for (String tok : getMigrationConfiguration().getTimestampFieldNames()) {
             ql.add(Query.and(Query.withValue(tok, Query.gte, startDate),
                     Query.withValue(tok, Query.lt, endDate)));
         }
@@ -185,21 +478,20 @@ public class DefaultMigrator extends Migrator {
         }
     }
 
-    private LightblueResponse saveBatch(List<JsonNode> documentsToOverwrite) throws LightblueResponseException {
+    private LightblueResponse saveBatch(List<JsonNode> documentsToOverwrite) throws LightblueException {
         // LightblueClient - save & overwrite documents
         DataSaveRequest saveRequest = new DataSaveRequest(getMigrationConfiguration().getDestinationEntityName(),
                 getMigrationConfiguration().getDestinationEntityVersion());
         saveRequest.setUpsert(true);
         saveRequest.create(documentsToOverwrite.toArray());
-        saveRequest.returns(Projection.includeField("*"));
-        LightblueResponse response;
-        try {
-            response = getDestCli().data(saveRequest);
-        } catch (LightblueException ex) {
-            // bad things happened, bail!
-            throw new RuntimeException(ex);
+        if (getMigrationConfiguration().isLeanWrite()) {
+            // Only the modified count in the response metadata is
+            // used, so don't send the documents back
+            saveRequest.returns(Projection.includeField("_id"));
+        } else {
+            saveRequest.returns(Projection.includeField("*"));
         }
-        return response;
+        return getDestCli().data(saveRequest);
     }
 
 }
@@ -0,0 +1,132 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * Computes a 64-bit structural hash of a document that is consistent with
+ * Utils.compareDocs: documents that compareDocs considers the same get the
+ * same fingerprint. That is:
+ * <ul>
+ * <li>fields in comparison exclusion paths, and fields ending with '#' are
+ * ignored</li>
+ * <li>object field order and array element order are ignored</li>
+ * <li>null fields are the same as missing fields</li>
+ * <li>values are compared as text, so 1 and "1" are the same</li>
+ * <li>dates are hashed as the time they represent, optionally ignoring
+ * milliseconds</li>
+ * </ul>
+ *
+ * If two documents have the same fingerprint, they can be treated as equal
+ * without computing a diff. Different fingerprints do not necessarily mean
+ * the documents are different, so those still have to be diffed.
+ */
+public final class DocumentFingerprint {
+
+    private static final long OBJECT = 0x3c6ef372fe94f82bL;
+    private static final long ARRAY = 0xa54ff53a5f1d36f1L;
+    private static final long TEXT = 0x510e527fade682d1L;
+    private static final long DATE = 0x9b05688c2b3e6c1fL;
+    private static final long NULL = 0x1f83d9abfb41bd6bL;
+
+    private DocumentFingerprint() {
+    }
+
+    public static long of(JsonNode doc, List<String> exclusionPaths, boolean ignoreTimestampMSDiffs) {
+        return of(doc, exclusionPaths, ignoreTimestampMSDiffs, null);
+    }
+
+    /**
+     * If timestampPaths is not empty, only the fields matching those paths
+     * are hashed as dates
+     */
+    public static long of(JsonNode doc, List<String> exclusionPaths, boolean ignoreTimestampMSDiffs, List<String> timestampPaths) {
+        return of(doc, new FieldPathMatcher(exclusionPaths), ignoreTimestampMSDiffs, new FieldPathMatcher(timestampPaths));
+    }
+
+    /**
+     * Same as the other of, but with exclusion and timestamp paths compiled
+     * in advance
+     */
+    public static long of(JsonNode doc, FieldPathMatcher exclusions, boolean ignoreTimestampMSDiffs, FieldPathMatcher timestampPaths) {
+        return hash(doc, new ArrayList<String>(), exclusions, ignoreTimestampMSDiffs, timestampPaths);
+    }
+
+    private static long hash(JsonNode node, List<String> path, FieldPathMatcher exclusions, boolean ignoreTimestampMSDiffs, FieldPathMatcher timestampPaths) {
+        if (node == null || node instanceof NullNode) {
+            return NULL;
+        } else if (node.isObject()) {
+            // Sum is independent of field order
+            long h = 0;
+            for (Iterator<Map.Entry<String, JsonNode>> itr = node.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> entry = itr.next();
+                String name = entry.getKey();
+                JsonNode value = entry.getValue();
+                if (!name.endsWith("#") && value != null && !(value instanceof NullNode)) {
+                    path.add(name);
+                    if (!exclusions.matches(path)) {
+                        h += mix(hash(name) * 31 + hash(value, path, exclusions, ignoreTimestampMSDiffs, timestampPaths));
+                    }
+                    path.remove(path.size() - 1);
+                }
+            }
+            return mix(OBJECT + h);
+        } else if (node.isArray()) {
+            // Sum is independent of element order
+            long h = 0;
+            int i = 0;
+            for (JsonNode element : node) {
+                path.add(Integer.toString(i));
+                if (!exclusions.matches(path)) {
+                    h += mix(hash(element, path, exclusions, ignoreTimestampMSDiffs, timestampPaths));
+                }
+                path.remove(path.size() - 1);
+                i++;
+            }
+            return mix(ARRAY + h);
+        } else {
+            String text = node.asText();
+            Date date = timestampPaths == null || timestampPaths.isEmpty() || timestampPaths.matches(path)
+                    ? Utils.parseDate(text) : null;
+            if (date != null) {
+                long t = date.getTime();
+                if (ignoreTimestampMSDiffs) {
+                    t = t / 1000;
+                }
+                return mix(DATE + t);
+            } else {
+                return mix(TEXT + hash(text));
+            }
+        }
+    }
+
+    /**
+     * FNV-1a hash of the string
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Murmur3 finalizer, spreads the bits of h
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,102 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Matches field paths against a set of patterns, compiled into a trie once.
+ * A pattern is a dot separated field path where any component can be '*'. A
+ * path matches a pattern if the pattern is a prefix of the path, that is,
+ * pattern 'a.*' matches 'a.0', and 'a.0.b', so everything under a matching
+ * field also matches.
+ */
+public class FieldPathMatcher {
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node wildcard;
+        boolean terminal;
+    }
+
+    private final Node root = new Node();
+    private final boolean empty;
+
+    public FieldPathMatcher(List<String> patterns) {
+        boolean e = true;
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                add(pattern);
+                e = false;
+            }
+        }
+        empty = e;
+    }
+
+    private void add(String pattern) {
+        Node node = root;
+        for (String component : StringUtils.split(pattern, '.')) {
+            Node next;
+            if ("*".equals(component)) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node();
+                }
+                next = node.wildcard;
+            } else {
+                next = node.children.get(component);
+                if (next == null) {
+                    node.children.put(component, next = new Node());
+                }
+            }
+            node = next;
+        }
+        node.terminal = true;
+    }
+
+    /**
+     * Returns true if there are no patterns
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public boolean matches(String path) {
+        if (empty) {
+            return false;
+        }
+        List<String> components = new ArrayList<>();
+        int start = 0;
+        int dot;
+        while ((dot = path.indexOf('.', start)) >= 0) {
+            components.add(path.substring(start, dot));
+            start = dot + 1;
+        }
+        components.add(path.substring(start));
+        return matches(root, components, 0);
+    }
+
+    /**
+     * Matches a path given as a list of field names, the way jiff
+     * represents field paths
+     */
+    public boolean matches(List<String> path) {
+        return !empty && matches(root, path, 0);
+    }
+
+    private static boolean matches(Node node, List<String> path, int i) {
+        if (node.terminal) {
+            return true;
+        }
+        if (i >= path.size()) {
+            return false;
+        }
+        Node next = node.children.get(path.get(i));
+        if (next != null && matches(next, path, i + 1)) {
+            return true;
+        }
+        return node.wildcard != null && matches(node.wildcard, path, i + 1);
+    }
+}
@@ -1,85 +1,255 @@
 package com.redhat.lightblue.migrator;
 
+import java.io.IOException;
 import java.util.List;
-import java.util.StringTokenizer;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.NullNode;
 
+/**
+ * Identity of a document, the values of its identity fields. Identity values
+ * are compared as text, the way they are read from documents, so 1 and "1"
+ * are the same identity.
+ *
+ * Identities are used as hash keys for every document a job processes, so
+ * they are kept small: a single field identity is stored without an array,
+ * and integer values are stored as Longs instead of strings. The hash code
+ * is computed once.
+ */
 public class Identity {
 
-    private final Object[] values;
+    /**
+     * The value of a single field identity, or Object[] of values. Integer
+     * values in canonical form are stored as Long.
+     */
+    private final Object key;
+    private final int hash;
 
     public Identity(Object[] values) {
-        this.values = values;
+        if (values.length == 1) {
+            key = compact(values[0]);
+        } else {
+            Object[] v = new Object[values.length];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = compact(values[i]);
+            }
+            key = v;
+        }
+        hash = computeHash();
     }
 
     public Identity(JsonNode doc, List<String> identityFields) {
-        values = new Object[identityFields.size()];
-        int i = 0;
-        for (String field : identityFields) {
-            JsonNode n = getFieldValue(doc, field);
-            if (n == null || n instanceof NullNode) {
-                values[i] = null;
-            } else {
-                values[i] = n.asText();
+        this(doc, new IdentityFields(identityFields));
+    }
+
+    public Identity(JsonNode doc, IdentityFields identityFields) {
+        int n = identityFields.size();
+        if (n == 1) {
+            key = compact(identityFields.getValue(doc, 0));
+        } else {
+            Object[] v = new Object[n];
+            for (int i = 0; i < n; i++) {
+                v[i] = compact(identityFields.getValue(doc, i));
             }
-            i++;
+            key = v;
         }
+        hash = computeHash();
     }
 
+    /**
+     * Returns the number of identity fields
+     */
+    public int size() {
+        return key instanceof Object[] ? ((Object[]) key).length : 1;
+    }
+
+    /**
+     * Returns the i'th identity value. Integer values are returned as
+     * strings.
+     */
     public Object get(int i) {
-        return values[i];
+        Object x;
+        if (key instanceof Object[]) {
+            x = ((Object[]) key)[i];
+        } else if (i == 0) {
+            x = key;
+        } else {
+            throw new IndexOutOfBoundsException(Integer.toString(i));
+        }
+        return x instanceof Long ? x.toString() : x;
     }
 
     public int hashCode() {
-        int v = 37;
-        for (Object x : values) {
-            if (x != null) {
-                v *= x.hashCode();
-            }
-        }
-        return v;
+        return hash;
     }
 
     public boolean equals(Object x) {
+        if (x == this) {
+            return true;
+        }
         if (x instanceof Identity) {
             Identity id = (Identity) x;
-            if (id.values.length == values.length) {
-                for (int i = 0; i < id.values.length; i++) {
-                    if (!((values[i] == null && id.values[i] == null)
-                            || (values[i] != null && values[i].equals(id.values[i])))) {
-                        return false;
+            if (id.hash != hash) {
+                return false;
+            }
+            if (key instanceof Object[]) {
+                if (id.key instanceof Object[]) {
+                    Object[] v1 = (Object[]) key;
+                    Object[] v2 = (Object[]) id.key;
+                    if (v1.length == v2.length) {
+                        for (int i = 0; i < v1.length; i++) {
+                            if (!valueEquals(v1[i], v2[i])) {
+                                return false;
+                            }
+                        }
+                        return true;
                     }
                 }
-                return true;
+                return false;
+            } else {
+                return !(id.key instanceof Object[]) && valueEquals(key, id.key);
             }
         }
         return false;
     }
 
     public String toString() {
-        StringBuilder bld = new StringBuilder();
-        for (int i = 0; i < values.length; i++) {
-            if (i > 0) {
-                bld.append(',');
+        if (key instanceof Object[]) {
+            Object[] v = (Object[]) key;
+            StringBuilder bld = new StringBuilder();
+            for (int i = 0; i < v.length; i++) {
+                if (i > 0) {
+                    bld.append(',');
+                }
+                bld.append(v[i] == null ? "null" : v[i].toString());
+            }
+            return bld.toString();
+        } else {
+            return key == null ? "null" : key.toString();
+        }
+    }
+
+    /**
+     * Returns the identity values as a JSON array of strings, so the
+     * identity can be stored, and read back with parse()
+     */
+    public String toJson() {
+        ArrayNode arr = JsonNodeFactory.instance.arrayNode();
+        for (int i = 0; i < size(); i++) {
+            Object v = get(i);
+            if (v == null) {
+                arr.addNull();
+            } else {
+                arr.add(v.toString());
             }
-            bld.append(values[i] == null ? "null" : values[i].toString());
         }
-        return bld.toString();
+        return arr.toString();
+    }
+
+    /**
+     * Parses an identity written by toJson()
+     */
+    public static Identity parse(String json) {
+        try {
+            JsonNode arr = new ObjectMapper().readTree(json);
+            Object[] values = new Object[arr.size()];
+            for (int i = 0; i < values.length; i++) {
+                JsonNode v = arr.get(i);
+                values[i] = v.isNull() ? null : v.asText();
+            }
+            return new Identity(values);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid identity: " + json, e);
+        }
     }
 
     /**
      * Ooes not do array index lookup!
      */
     public static JsonNode getFieldValue(JsonNode doc, String field) {
-        StringTokenizer tkz = new StringTokenizer(field, ". ");
         JsonNode trc = doc;
-        while (tkz.hasMoreTokens() && trc != null) {
-            String tok = tkz.nextToken();
-            trc = trc.get(tok);
+        for (String component : IdentityFields.split(field)) {
+            if (trc == null) {
+                break;
+            }
+            trc = trc.get(component);
         }
         return trc;
     }
 
+    private static boolean valueEquals(Object v1, Object v2) {
+        return v1 == null ? v2 == null : v1.equals(v2);
+    }
+
+    private static Object compact(JsonNode node) {
+        if (node == null || node instanceof NullNode) {
+            return null;
+        } else {
+            return compact(node.asText());
+        }
+    }
+
+    /**
+     * Returns the value as a Long if it is a string in canonical integer
+     * form, that is, Long.toString would give back the same string
+     */
+    private static Object compact(Object value) {
+        if (value instanceof String) {
+            String s = (String) value;
+            int n = s.length();
+            int start = n > 0 && s.charAt(0) == '-' ? 1 : 0;
+            // At most 18 digits, so it cannot overflow
+            if (n > start && n - start <= 18
+                    && (s.charAt(start) != '0' || (n == 1))) {
+                long v = 0;
+                for (int i = start; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c < '0' || c > '9') {
+                        return value;
+                    }
+                    v = v * 10 + (c - '0');
+                }
+                return start == 1 ? -v : v;
+            }
+        }
+        return value;
+    }
+
+    private int computeHash() {
+        if (key instanceof Object[]) {
+            int h = 0x9e3779b9;
+            for (Object x : (Object[]) key) {
+                h = (h ^ valueHash(x)) * 0x01000193;
+            }
+            return mix(h);
+        } else {
+            return mix(valueHash(key));
+        }
+    }
+
+    private static int valueHash(Object x) {
+        if (x == null) {
+            return 0x5bd1e995;
+        } else if (x instanceof Long) {
+            long v = (Long) x;
+            return (int) (v ^ (v >>> 32)) * 0x85ebca6b;
+        } else {
+            return x.hashCode();
+        }
+    }
+
+    /**
+     * Murmur3 finalizer, spreads the bits of h
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
 }
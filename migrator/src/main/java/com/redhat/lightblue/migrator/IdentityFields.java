@@ -0,0 +1,67 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Identity field names, split into path components once, so identities can
+ * be read from documents without parsing the field names for every
+ * document.
+ */
+public class IdentityFields {
+
+    private final List<String> fields;
+    private final String[][] paths;
+
+    public IdentityFields(List<String> fields) {
+        this.fields = fields;
+        paths = new String[fields == null ? 0 : fields.size()][];
+        if (fields != null) {
+            int i = 0;
+            for (String field : fields) {
+                paths[i++] = split(field);
+            }
+        }
+    }
+
+    /**
+     * Returns the field names this was built from
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * Returns the value of the i'th identity field in doc, or null if there
+     * isn't one. Does not do array index lookup.
+     */
+    public JsonNode getValue(JsonNode doc, int i) {
+        JsonNode trc = doc;
+        for (String component : paths[i]) {
+            if (trc == null) {
+                break;
+            }
+            trc = trc.get(component);
+        }
+        return trc;
+    }
+
+    /**
+     * Splits a field name into its components
+     */
+    public static String[] split(String field) {
+        StringTokenizer tkz = new StringTokenizer(field, ". ");
+        List<String> list = new ArrayList<>();
+        while (tkz.hasMoreTokens()) {
+            list.add(tkz.nextToken());
+        }
+        return list.toArray(new String[list.size()]);
+    }
+}
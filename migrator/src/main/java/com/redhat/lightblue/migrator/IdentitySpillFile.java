@@ -0,0 +1,324 @@
+package com.redhat.lightblue.migrator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Identities, each with an optional payload, kept in a file in a local
+ * directory instead of the heap. This is used by CompactDocumentMap and
+ * SpillableIdentitySet to hold documents and identities of a batch while the
+ * heap is nearly full.
+ *
+ * Each identity is appended to the file as a record: a header with the
+ * length of the identity, the length of the payload and a fingerprint,
+ * followed by the identity as JSON and the payload. The only thing kept in
+ * memory for a record is a slot in an open addressing hash table, the hash of
+ * the identity and the record offset, 12 bytes. An identity is looked up by
+ * reading the records with the same hash from the file.
+ *
+ * The file is created when the first record is added, and deleted when this
+ * is closed. Adding and removing records is synchronized, payloads are read
+ * with positional reads, which can run concurrently.
+ */
+public class IdentitySpillFile implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdentitySpillFile.class);
+
+    // identity length, payload length, fingerprint
+    private static final int HEADER_SIZE = 16;
+
+    private static final long EMPTY = -1;
+    private static final long REMOVED = -2;
+
+    private final File directory;
+    private File file;
+    private FileChannel channel;
+    private long fileSize;
+
+    private int[] hashes = new int[16];
+    private long[] offsets = newOffsets(16);
+    private int size;
+    // Live and removed slots
+    private int used;
+
+    public IdentitySpillFile(File directory) {
+        this.directory = directory;
+    }
+
+    private static long[] newOffsets(int n) {
+        long[] x = new long[n];
+        Arrays.fill(x, EMPTY);
+        return x;
+    }
+
+    /**
+     * Returns if the fraction of the maximum heap in use is at least
+     * threshold
+     */
+    public static boolean isHeapUsageAbove(double threshold) {
+        Runtime rt = Runtime.getRuntime();
+        return (double) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory() >= threshold;
+    }
+
+    /**
+     * Returns the number of identities in the file
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Appends the identity with the payload, which can be null, and returns
+     * the record offset. The identity must not be in the file already.
+     */
+    public synchronized long add(Identity id, byte[] payload, long fingerprint) {
+        byte[] idBytes = id.toJson().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = payload == null ? 0 : payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + idBytes.length + payloadLength);
+        buf.putInt(idBytes.length).putInt(payloadLength).putLong(fingerprint).put(idBytes);
+        if (payload != null) {
+            buf.put(payload);
+        }
+        buf.flip();
+        long offset = fileSize;
+        write(buf, offset);
+        fileSize += buf.limit();
+        if ((used + 1) * 2 > hashes.length) {
+            rehash(size * 2 + 2 > hashes.length ? hashes.length * 2 : hashes.length);
+        }
+        insert(id.hashCode(), offset);
+        size++;
+        used++;
+        return offset;
+    }
+
+    private void insert(int hash, long offset) {
+        int mask = hashes.length - 1;
+        int i = hash & mask;
+        while (offsets[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        offsets[i] = offset;
+    }
+
+    private void rehash(int n) {
+        int[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        hashes = new int[n];
+        offsets = newOffsets(n);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldOffsets[i] >= 0) {
+                insert(oldHashes[i], oldOffsets[i]);
+            }
+        }
+        used = size;
+    }
+
+    /**
+     * Returns the record offset of the identity, or -1 if it is not in the
+     * file
+     */
+    public synchronized long find(Identity id) {
+        int slot = findSlot(id);
+        return slot < 0 ? -1 : offsets[slot];
+    }
+
+    private int findSlot(Identity id) {
+        if (size == 0) {
+            return -1;
+        }
+        int hash = id.hashCode();
+        int mask = hashes.length - 1;
+        for (int i = hash & mask; offsets[i] != EMPTY; i = (i + 1) & mask) {
+            if (offsets[i] >= 0 && hashes[i] == hash && id.equals(readIdentity(offsets[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the identity. The record stays in the file, marked removed.
+     */
+    public synchronized boolean remove(Identity id) {
+        int slot = findSlot(id);
+        if (slot < 0) {
+            return false;
+        }
+        long offset = offsets[slot];
+        offsets[slot] = REMOVED;
+        size--;
+        // A negative identity length marks the record removed
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(-readHeader(offset).getInt(0)).flip();
+        write(buf, offset);
+        return true;
+    }
+
+    /**
+     * Reads the identity of the record at offset
+     */
+    public Identity readIdentity(long offset) {
+        int idLength = Math.abs(readHeader(offset).getInt(0));
+        return Identity.parse(new String(read(offset + HEADER_SIZE, idLength), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the offset of the payload of the record at offset
+     */
+    public long getPayloadOffset(long offset) {
+        return offset + HEADER_SIZE + Math.abs(readHeader(offset).getInt(0));
+    }
+
+    /**
+     * Returns the payload length of the record at offset
+     */
+    public int getPayloadLength(long offset) {
+        return readHeader(offset).getInt(4);
+    }
+
+    /**
+     * Returns the fingerprint of the record at offset
+     */
+    public long getFingerprint(long offset) {
+        return readHeader(offset).getLong(8);
+    }
+
+    private ByteBuffer readHeader(long offset) {
+        return ByteBuffer.wrap(read(offset, HEADER_SIZE));
+    }
+
+    /**
+     * Returns the offsets of the records that are not removed, in the order
+     * they were added
+     */
+    public Iterator<Long> records() {
+        final long end;
+        synchronized (this) {
+            end = fileSize;
+        }
+        return new Iterator<Long>() {
+            private long next = skipRemoved(0);
+
+            private long skipRemoved(long offset) {
+                while (offset < end) {
+                    ByteBuffer header = readHeader(offset);
+                    if (header.getInt(0) >= 0) {
+                        break;
+                    }
+                    offset += HEADER_SIZE - header.getInt(0) + header.getInt(4);
+                }
+                return offset;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public Long next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                long offset = next;
+                ByteBuffer header = readHeader(offset);
+                next = skipRemoved(offset + HEADER_SIZE + header.getInt(0) + header.getInt(4));
+                return offset;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void write(ByteBuffer buf, long offset) {
+        try {
+            if (channel == null) {
+                directory.mkdirs();
+                file = File.createTempFile("migrator-", ".spill", directory);
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                LOGGER.debug("Spilling to {}", file);
+            }
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot spill to " + directory, e);
+        }
+    }
+
+    /**
+     * Reads length bytes at offset
+     */
+    public byte[] read(long offset, int length) {
+        FileChannel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        if (ch == null) {
+            throw new IllegalStateException("Spill file is closed");
+        }
+        // Positional reads can run concurrently
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + file, e);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Removes all identities, and truncates the file. The file is kept until
+     * this is closed.
+     */
+    public synchronized void clear() {
+        hashes = new int[16];
+        offsets = newOffsets(16);
+        size = 0;
+        used = 0;
+        if (channel != null) {
+            try {
+                channel.truncate(0);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot truncate " + file, e);
+            }
+        }
+        fileSize = 0;
+    }
+
+    /**
+     * Deletes the file, and removes all identities
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            LOGGER.debug("Spilled {} bytes to {}", fileSize, file);
+        }
+        clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.List;
+
+/**
+ * Decides which migration jobs a migrator controller gets to run. The
+ * controller retrieves available jobs, and asks the claimer to claim some of
+ * them. A claimed job is not claimed by any other controller until it is
+ * released.
+ *
+ * Implementations must have a public no-arg constructor. The claimer of a
+ * configuration is set with jobClaimerClass, LockingJobClaimer is the
+ * default.
+ */
+public interface JobClaimer {
+
+    /**
+     * Claims at most maxJobs of the candidate jobs for the controller, and
+     * returns the jobs claimed. Candidates are in random order.
+     */
+    List<MigrationJob> claim(MigratorController controller, List<MigrationJob> candidates, int maxJobs)
+            throws Exception;
+
+    /**
+     * Called after the migrator of a claimed job ends. The migrator already
+     * updated the status of the job.
+     */
+    void release(MigratorController controller, String jobId);
+
+    /**
+     * Called for a claimed job that was never started. The job should become
+     * available again.
+     */
+    void unclaim(MigratorController controller, String jobId);
+}
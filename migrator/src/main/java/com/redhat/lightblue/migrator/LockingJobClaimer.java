@@ -0,0 +1,36 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Claims jobs by acquiring a lightblue lock for each job, one request per
+ * job. The job status is not changed until the migrator starts.
+ */
+public class LockingJobClaimer implements JobClaimer {
+
+    @Override
+    public List<MigrationJob> claim(MigratorController controller, List<MigrationJob> candidates, int maxJobs)
+            throws Exception {
+        List<MigrationJob> claimed = new ArrayList<>();
+        for (MigrationJob job : candidates) {
+            if (claimed.size() >= maxJobs || controller.isInterrupted()) {
+                break;
+            }
+            if (controller.lock(job.get_id()) != null) {
+                claimed.add(job);
+            }
+        }
+        return claimed;
+    }
+
+    @Override
+    public void release(MigratorController controller, String jobId) {
+        controller.unlock(jobId);
+    }
+
+    @Override
+    public void unclaim(MigratorController controller, String jobId) {
+        controller.unlock(jobId);
+    }
+}
@@ -0,0 +1,122 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.Literal;
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.request.data.DataDeleteRequest;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataSaveRequest;
+
+/**
+ * Keeps the membership record of a migrator controller, and the hash ring of
+ * the live members of its configuration. A job belongs to the member the ring
+ * assigns its id to.
+ *
+ * refresh() writes the heartbeat of this member, and reloads the members if
+ * more than heartbeatMS passed since the last refresh. Members that didn't
+ * write a heartbeat for 3 heartbeat periods are left out of the ring, so their
+ * jobs are assigned to the remaining members.
+ */
+public class Membership {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Membership.class);
+
+    public static final long DEFAULT_HEARTBEAT_MS = 30000l;
+
+    private final LightblueClient cli;
+    private final String configurationName;
+    private final String memberName;
+    private final long heartbeatMS;
+
+    private long lastRefresh = 0;
+    private ConsistentHashRing ring;
+
+    public Membership(LightblueClient cli, String configurationName, String memberName) {
+        this(cli, configurationName, memberName, DEFAULT_HEARTBEAT_MS);
+    }
+
+    public Membership(LightblueClient cli, String configurationName, String memberName, long heartbeatMS) {
+        this.cli = cli;
+        this.configurationName = configurationName;
+        this.memberName = memberName;
+        this.heartbeatMS = heartbeatMS;
+        List<String> self = new ArrayList<>();
+        self.add(memberName);
+        ring = new ConsistentHashRing(self);
+    }
+
+    public String getMemberName() {
+        return memberName;
+    }
+
+    /**
+     * Writes the heartbeat and reloads the members if it is time to
+     */
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh < heartbeatMS) {
+            return;
+        }
+        lastRefresh = now;
+        try {
+            MigratorMember m = new MigratorMember();
+            m.set_id(configurationName + ":" + memberName);
+            m.setConfigurationName(configurationName);
+            m.setMemberName(memberName);
+            m.setHeartbeat(new Date(now));
+            DataSaveRequest save = new DataSaveRequest(MigratorMember.ENTITY_NAME, null);
+            save.create(m);
+            save.setUpsert(true);
+            cli.data(save);
+
+            DataFindRequest find = new DataFindRequest(MigratorMember.ENTITY_NAME, null);
+            find.where(Query.and(Query.withValue("configurationName", Query.eq, configurationName),
+                    Query.withValue("heartbeat", Query.gte, Literal.value(new Date(now - 3 * heartbeatMS)))));
+            find.select(Projection.includeField("memberName"));
+            MigratorMember[] members = cli.data(find, MigratorMember[].class);
+            List<String> names = new ArrayList<>();
+            names.add(memberName);
+            if (members != null) {
+                for (MigratorMember x : members) {
+                    if (x.getMemberName() != null) {
+                        names.add(x.getMemberName());
+                    }
+                }
+            }
+            ring = new ConsistentHashRing(names);
+            LOGGER.debug("Members of {}: {}", configurationName, ring.getMembers());
+        } catch (Exception e) {
+            // Keep the last known ring
+            LOGGER.error("Cannot refresh membership of {}: {}", configurationName, e, e);
+        }
+    }
+
+    /**
+     * Returns if the job belongs to this member
+     */
+    public boolean isMine(String jobId) {
+        return memberName.equals(ring.getOwner(jobId));
+    }
+
+    /**
+     * Removes the membership record, so the jobs of this member are
+     * reassigned without waiting for the heartbeat to expire
+     */
+    public void leave() {
+        try {
+            DataDeleteRequest del = new DataDeleteRequest(MigratorMember.ENTITY_NAME, null);
+            del.where(Query.withValue("_id", Query.eq, configurationName + ":" + memberName));
+            cli.data(del);
+        } catch (Exception e) {
+            LOGGER.error("Cannot remove membership of {}: {}", configurationName, e);
+        }
+    }
+}
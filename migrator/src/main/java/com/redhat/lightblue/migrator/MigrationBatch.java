@@ -0,0 +1,105 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A batch of documents going through the stages of a migration: destination
+ * fetch, compare, and save. Each stage fills in the fields it computes.
+ */
+public class MigrationBatch {
+
+    private List<JsonNode> sourceDocuments;
+    private final int sourceDocumentCount;
+    private Identity lastIdentity;
+
+    private Map<Identity, JsonNode> sourceDocs;
+    private Map<Identity, JsonNode> destDocs;
+    private Set<Identity> insertDocs;
+    private Set<Identity> rewriteDocs;
+    private List<JsonNode> saveDocsList;
+
+    public MigrationBatch(List<JsonNode> sourceDocuments) {
+        this.sourceDocuments = sourceDocuments;
+        this.sourceDocumentCount = sourceDocuments == null ? 0 : sourceDocuments.size();
+    }
+
+    /**
+     * The source documents as they are read from the source, or null if
+     * they are released
+     */
+    public List<JsonNode> getSourceDocuments() {
+        return sourceDocuments;
+    }
+
+    /**
+     * The number of source documents read from the source
+     */
+    public int getSourceDocumentCount() {
+        return sourceDocumentCount;
+    }
+
+    /**
+     * The identity of the last source document of the batch in identity
+     * order, or null if the batch is empty. A job that saved this batch
+     * resumes after it.
+     */
+    public Identity getLastIdentity() {
+        return lastIdentity;
+    }
+
+    public void setLastIdentity(Identity id) {
+        lastIdentity = id;
+    }
+
+    /**
+     * Drops the reference to the source documents once they are in
+     * sourceDocs
+     */
+    public void releaseSourceDocuments() {
+        sourceDocuments = null;
+    }
+
+    public Map<Identity, JsonNode> getSourceDocs() {
+        return sourceDocs;
+    }
+
+    public void setSourceDocs(Map<Identity, JsonNode> m) {
+        sourceDocs = m;
+    }
+
+    public Map<Identity, JsonNode> getDestDocs() {
+        return destDocs;
+    }
+
+    public void setDestDocs(Map<Identity, JsonNode> m) {
+        destDocs = m;
+    }
+
+    public Set<Identity> getInsertDocs() {
+        return insertDocs;
+    }
+
+    public void setInsertDocs(Set<Identity> s) {
+        insertDocs = s;
+    }
+
+    public Set<Identity> getRewriteDocs() {
+        return rewriteDocs;
+    }
+
+    public void setRewriteDocs(Set<Identity> s) {
+        rewriteDocs = s;
+    }
+
+    public List<JsonNode> getSaveDocsList() {
+        return saveDocsList;
+    }
+
+    public void setSaveDocsList(List<JsonNode> l) {
+        saveDocsList = l;
+    }
+}
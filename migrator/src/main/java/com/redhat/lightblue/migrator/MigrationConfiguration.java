@@ -1,7 +1,10 @@
 package com.redhat.lightblue.migrator;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.StringTokenizer;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -17,20 +20,135 @@ public class MigrationConfiguration {
     private double migratorWeight = 1f;
     private String migratorClass;
     private String consistencyCheckerControllerClass;
+    /**
+     * Class name of the JobClaimer. If null, LockingJobClaimer is used
+     */
+    private String jobClaimerClass;
     private boolean overwriteDestinationDocuments = false;
     private List<String> comparisonExclusionPaths;
+    /**
+     * If set, only the fields matching these paths are compared as dates
+     */
+    private List<String> comparisonTimestampPaths;
+    // compiled comparison paths, built when first used
+    private volatile FieldPathMatcher comparisonExclusionMatcher;
+    private volatile FieldPathMatcher comparisonTimestampMatcher;
     private String destinationConfigPath;
     private String destinationServiceURI;
     private String destinationEntityName;
     private String destinationEntityVersion;
     private String sourceConfigPath;
     private List<String> destinationIdentityFields;
+    private volatile IdentityFields destinationIdentityFieldPaths;
     private String sourceServiceURI;
     private String sourceEntityName;
     private String sourceEntityVersion;
     private boolean ignoreTimestampMSDiffs = true;
 
+    /**
+     * If positive, source documents are read and migrated in pages of this
+     * size. Otherwise, all source documents of a job are read at once.
+     */
+    private int sourcePageSize = 0;
+
+    /**
+     * If positive, and sourcePageSize is set, the destination fetch, compare
+     * and save stages of a job run concurrently, connected with queues of
+     * this many pages.
+     */
+    private int pipelineQueueSize = 0;
+
+    /**
+     * Maximum number of concurrent destination document lookups of a job
+     */
+    private int destinationFetchThreads = 1;
+
+    /**
+     * Number of threads a job uses to compare source and destination
+     * documents
+     */
+    private int compareThreads = 1;
+
+    /**
+     * How documents are compared, see Utils.CompareMode
+     */
+    private Utils.CompareMode compareMode = Utils.CompareMode.SINGLE_PASS;
+
+    /**
+     * If true, the documents of a batch are kept serialized, and parsed only
+     * when they are needed
+     */
+    private boolean compactDocuments = false;
+
+    /**
+     * If set, documents of a batch are written to files in this directory
+     * while heap usage is above spillHeapThreshold. Jobs are then read in
+     * pages, of Migrator.SPILL_PAGE_SIZE documents if sourcePageSize is not
+     * set.
+     */
+    private String spillDirectory;
+    private double spillHeapThreshold = 0.8;
+
+    /**
+     * If true, and the JVM supports virtual threads, migration jobs run on
+     * virtual threads instead of pooled platform threads
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * If true, jobs are partitioned among the migrator processes running
+     * this configuration, see Membership
+     */
+    private boolean partitioned = false;
+
+    /**
+     * If positive, consistency checker periods with more source documents
+     * than this are split into several jobs, see Migrator.splitRange
+     */
+    private int maxJobDocuments = 0;
+
+    /**
+     * If set, the consistency checker catches up with elapsed periods by
+     * creating jobs spanning several periods, up to this long. Something
+     * like 1 hour, 1 day, same as period
+     */
+    private String catchUpMaxSpan;
+
+    /**
+     * If positive, the consistency checker catches up with elapsed periods
+     * by creating jobs spanning several periods, up to about this many
+     * source documents
+     */
+    private int catchUpTargetDocuments = 0;
+
+    /**
+     * Number of jobs the consistency checker inserts with one request. If not
+     * positive, ConsistencyCheckerController.JOB_INSERT_BATCH_SIZE is used.
+     */
+    private int jobInsertBatchSize = 0;
+
+    /**
+     * Maximum number of concurrent save requests of a job
+     */
+    private int saveThreads = 1;
+
+    /**
+     * If true, saves ask lightblue to return only the _id of the saved
+     * documents instead of the full documents
+     */
+    private boolean leanWrite = true;
+
+    /**
+     * If positive, save and destination fetch batch sizes are adjusted
+     * between minBatchSize and maxBatchSize so that batches complete in about
+     * this much time. Otherwise, batch size is fixed.
+     */
+    private long targetBatchLatencyMS = 0;
+    private int minBatchSize = 8;
+    private int maxBatchSize = 512;
+
     private String timestampFieldName;
+    private volatile List<String> timestampFieldNames;
     private Date timestampInitialValue;
     /**
      * The period is one of:
@@ -138,12 +256,65 @@ public class MigrationConfiguration {
         this.migratorClass = argMigratorClass;
     }
 
+    /**
+     * Gets the value of jobClaimerClass
+     *
+     * @return the value of jobClaimerClass
+     */
+    public final String getJobClaimerClass() {
+        return this.jobClaimerClass;
+    }
+
+    /**
+     * Sets the value of jobClaimerClass
+     *
+     * @param argJobClaimerClass Value to assign to this.jobClaimerClass
+     */
+    public final void setJobClaimerClass(final String argJobClaimerClass) {
+        this.jobClaimerClass = argJobClaimerClass;
+    }
+
     public final List<String> getComparisonExclusionPaths() {
         return comparisonExclusionPaths;
     }
 
     public final void setComparisonExclusionPaths(List<String> s) {
         comparisonExclusionPaths = s;
+        comparisonExclusionMatcher = null;
+    }
+
+    /**
+     * Returns comparisonExclusionPaths compiled into a matcher. The matcher
+     * is built once, and rebuilt only if the paths are set again.
+     */
+    @JsonIgnore
+    public final FieldPathMatcher getComparisonExclusionMatcher() {
+        FieldPathMatcher m = comparisonExclusionMatcher;
+        if (m == null) {
+            comparisonExclusionMatcher = m = new FieldPathMatcher(comparisonExclusionPaths);
+        }
+        return m;
+    }
+
+    public final List<String> getComparisonTimestampPaths() {
+        return comparisonTimestampPaths;
+    }
+
+    public final void setComparisonTimestampPaths(List<String> s) {
+        comparisonTimestampPaths = s;
+        comparisonTimestampMatcher = null;
+    }
+
+    /**
+     * Returns comparisonTimestampPaths compiled into a matcher
+     */
+    @JsonIgnore
+    public final FieldPathMatcher getComparisonTimestampMatcher() {
+        FieldPathMatcher m = comparisonTimestampMatcher;
+        if (m == null) {
+            comparisonTimestampMatcher = m = new FieldPathMatcher(comparisonTimestampPaths);
+        }
+        return m;
     }
 
     /**
@@ -282,6 +453,20 @@ public class MigrationConfiguration {
 
     public final void setDestinationIdentityFields(List<String> s) {
         destinationIdentityFields = s;
+        destinationIdentityFieldPaths = null;
+    }
+
+    /**
+     * Returns destinationIdentityFields split into path components. These
+     * are built once, and rebuilt only if the fields are set again.
+     */
+    @JsonIgnore
+    public final IdentityFields getDestinationIdentityFieldPaths() {
+        IdentityFields f = destinationIdentityFieldPaths;
+        if (f == null && destinationIdentityFields != null) {
+            destinationIdentityFieldPaths = f = new IdentityFields(destinationIdentityFields);
+        }
+        return f;
     }
 
     /**
@@ -337,6 +522,27 @@ public class MigrationConfiguration {
      */
     public final void setTimestampFieldName(final String argTimestampFieldName) {
         this.timestampFieldName = argTimestampFieldName;
+        this.timestampFieldNames = null;
+    }
+
+    /**
+     * Returns the timestamp field names in timestampFieldName, split at
+     * commas and spaces
+     */
+    @JsonIgnore
+    public final List<String> getTimestampFieldNames() {
+        List<String> l = timestampFieldNames;
+        if (l == null) {
+            l = new ArrayList<>();
+            if (timestampFieldName != null) {
+                StringTokenizer tkz = new StringTokenizer(timestampFieldName, ", ");
+                while (tkz.hasMoreTokens()) {
+                    l.add(tkz.nextToken());
+                }
+            }
+            timestampFieldNames = l = Collections.unmodifiableList(l);
+        }
+        return l;
     }
 
     /**
@@ -463,4 +669,348 @@ public class MigrationConfiguration {
     public void setIgnoreTimestampMSDiffs(boolean ignoreTimestampMSDiffs) {
         this.ignoreTimestampMSDiffs = ignoreTimestampMSDiffs;
     }
+
+    /**
+     * Gets the value of sourcePageSize
+     *
+     * @return the value of sourcePageSize
+     */
+    public final int getSourcePageSize() {
+        return this.sourcePageSize;
+    }
+
+    /**
+     * Sets the value of sourcePageSize
+     *
+     * @param argSourcePageSize Value to assign to this.sourcePageSize
+     */
+    public final void setSourcePageSize(final int argSourcePageSize) {
+        this.sourcePageSize = argSourcePageSize;
+    }
+
+    /**
+     * Gets the value of pipelineQueueSize
+     *
+     * @return the value of pipelineQueueSize
+     */
+    public final int getPipelineQueueSize() {
+        return this.pipelineQueueSize;
+    }
+
+    /**
+     * Sets the value of pipelineQueueSize
+     *
+     * @param argPipelineQueueSize Value to assign to this.pipelineQueueSize
+     */
+    public final void setPipelineQueueSize(final int argPipelineQueueSize) {
+        this.pipelineQueueSize = argPipelineQueueSize;
+    }
+
+    /**
+     * Gets the value of destinationFetchThreads
+     *
+     * @return the value of destinationFetchThreads
+     */
+    public final int getDestinationFetchThreads() {
+        return this.destinationFetchThreads;
+    }
+
+    /**
+     * Sets the value of destinationFetchThreads
+     *
+     * @param argDestinationFetchThreads Value to assign to
+     * this.destinationFetchThreads
+     */
+    public final void setDestinationFetchThreads(final int argDestinationFetchThreads) {
+        this.destinationFetchThreads = argDestinationFetchThreads;
+    }
+
+    /**
+     * Gets the value of targetBatchLatencyMS
+     *
+     * @return the value of targetBatchLatencyMS
+     */
+    public final long getTargetBatchLatencyMS() {
+        return this.targetBatchLatencyMS;
+    }
+
+    /**
+     * Sets the value of targetBatchLatencyMS
+     *
+     * @param argTargetBatchLatencyMS Value to assign to
+     * this.targetBatchLatencyMS
+     */
+    public final void setTargetBatchLatencyMS(final long argTargetBatchLatencyMS) {
+        this.targetBatchLatencyMS = argTargetBatchLatencyMS;
+    }
+
+    /**
+     * Gets the value of minBatchSize
+     *
+     * @return the value of minBatchSize
+     */
+    public final int getMinBatchSize() {
+        return this.minBatchSize;
+    }
+
+    /**
+     * Sets the value of minBatchSize
+     *
+     * @param argMinBatchSize Value to assign to this.minBatchSize
+     */
+    public final void setMinBatchSize(final int argMinBatchSize) {
+        this.minBatchSize = argMinBatchSize;
+    }
+
+    /**
+     * Gets the value of maxBatchSize
+     *
+     * @return the value of maxBatchSize
+     */
+    public final int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Sets the value of maxBatchSize
+     *
+     * @param argMaxBatchSize Value to assign to this.maxBatchSize
+     */
+    public final void setMaxBatchSize(final int argMaxBatchSize) {
+        this.maxBatchSize = argMaxBatchSize;
+    }
+
+    /**
+     * Gets the value of saveThreads
+     *
+     * @return the value of saveThreads
+     */
+    public final int getSaveThreads() {
+        return this.saveThreads;
+    }
+
+    /**
+     * Sets the value of saveThreads
+     *
+     * @param argSaveThreads Value to assign to this.saveThreads
+     */
+    public final void setSaveThreads(final int argSaveThreads) {
+        this.saveThreads = argSaveThreads;
+    }
+
+    /**
+     * Gets the value of leanWrite
+     *
+     * @return the value of leanWrite
+     */
+    public final boolean isLeanWrite() {
+        return this.leanWrite;
+    }
+
+    /**
+     * Sets the value of leanWrite
+     *
+     * @param argLeanWrite Value to assign to this.leanWrite
+     */
+    public final void setLeanWrite(final boolean argLeanWrite) {
+        this.leanWrite = argLeanWrite;
+    }
+
+    /**
+     * Gets the value of compareThreads
+     *
+     * @return the value of compareThreads
+     */
+    public final int getCompareThreads() {
+        return this.compareThreads;
+    }
+
+    /**
+     * Sets the value of compareThreads
+     *
+     * @param argCompareThreads Value to assign to this.compareThreads
+     */
+    public final void setCompareThreads(final int argCompareThreads) {
+        this.compareThreads = argCompareThreads;
+    }
+
+    /**
+     * Gets the value of compareMode
+     *
+     * @return the value of compareMode
+     */
+    public final Utils.CompareMode getCompareMode() {
+        return this.compareMode;
+    }
+
+    /**
+     * Sets the value of compareMode
+     *
+     * @param argCompareMode Value to assign to this.compareMode
+     */
+    public final void setCompareMode(final Utils.CompareMode argCompareMode) {
+        this.compareMode = argCompareMode;
+    }
+
+    /**
+     * Gets the value of compactDocuments
+     *
+     * @return the value of compactDocuments
+     */
+    public final boolean isCompactDocuments() {
+        return this.compactDocuments;
+    }
+
+    /**
+     * Sets the value of compactDocuments
+     *
+     * @param argCompactDocuments Value to assign to this.compactDocuments
+     */
+    public final void setCompactDocuments(final boolean argCompactDocuments) {
+        this.compactDocuments = argCompactDocuments;
+    }
+
+    /**
+     * Gets the value of spillDirectory
+     *
+     * @return the value of spillDirectory
+     */
+    public final String getSpillDirectory() {
+        return this.spillDirectory;
+    }
+
+    /**
+     * Sets the value of spillDirectory
+     *
+     * @param argSpillDirectory Value to assign to this.spillDirectory
+     */
+    public final void setSpillDirectory(final String argSpillDirectory) {
+        this.spillDirectory = argSpillDirectory;
+    }
+
+    /**
+     * Gets the value of spillHeapThreshold
+     *
+     * @return the value of spillHeapThreshold
+     */
+    public final double getSpillHeapThreshold() {
+        return this.spillHeapThreshold;
+    }
+
+    /**
+     * Sets the value of spillHeapThreshold
+     *
+     * @param argSpillHeapThreshold Value to assign to this.spillHeapThreshold
+     */
+    public final void setSpillHeapThreshold(final double argSpillHeapThreshold) {
+        this.spillHeapThreshold = argSpillHeapThreshold;
+    }
+
+    /**
+     * Gets the value of virtualThreads
+     *
+     * @return the value of virtualThreads
+     */
+    public final boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Sets the value of virtualThreads
+     *
+     * @param argVirtualThreads Value to assign to this.virtualThreads
+     */
+    public final void setVirtualThreads(final boolean argVirtualThreads) {
+        this.virtualThreads = argVirtualThreads;
+    }
+
+    /**
+     * Gets the value of partitioned
+     *
+     * @return the value of partitioned
+     */
+    public final boolean isPartitioned() {
+        return this.partitioned;
+    }
+
+    /**
+     * Sets the value of partitioned
+     *
+     * @param argPartitioned Value to assign to this.partitioned
+     */
+    public final void setPartitioned(final boolean argPartitioned) {
+        this.partitioned = argPartitioned;
+    }
+
+    /**
+     * Gets the value of maxJobDocuments
+     *
+     * @return the value of maxJobDocuments
+     */
+    public final int getMaxJobDocuments() {
+        return this.maxJobDocuments;
+    }
+
+    /**
+     * Sets the value of maxJobDocuments
+     *
+     * @param argMaxJobDocuments Value to assign to this.maxJobDocuments
+     */
+    public final void setMaxJobDocuments(final int argMaxJobDocuments) {
+        this.maxJobDocuments = argMaxJobDocuments;
+    }
+
+    /**
+     * Gets the value of catchUpMaxSpan
+     *
+     * @return the value of catchUpMaxSpan
+     */
+    public final String getCatchUpMaxSpan() {
+        return this.catchUpMaxSpan;
+    }
+
+    /**
+     * Sets the value of catchUpMaxSpan
+     *
+     * @param argCatchUpMaxSpan Value to assign to this.catchUpMaxSpan
+     */
+    public final void setCatchUpMaxSpan(final String argCatchUpMaxSpan) {
+        this.catchUpMaxSpan = argCatchUpMaxSpan;
+    }
+
+    /**
+     * Gets the value of catchUpTargetDocuments
+     *
+     * @return the value of catchUpTargetDocuments
+     */
+    public final int getCatchUpTargetDocuments() {
+        return this.catchUpTargetDocuments;
+    }
+
+    /**
+     * Sets the value of catchUpTargetDocuments
+     *
+     * @param argCatchUpTargetDocuments Value to assign to this.catchUpTargetDocuments
+     */
+    public final void setCatchUpTargetDocuments(final int argCatchUpTargetDocuments) {
+        this.catchUpTargetDocuments = argCatchUpTargetDocuments;
+    }
+
+    /**
+     * Gets the value of jobInsertBatchSize
+     *
+     * @return the value of jobInsertBatchSize
+     */
+    public final int getJobInsertBatchSize() {
+        return this.jobInsertBatchSize;
+    }
+
+    /**
+     * Sets the value of jobInsertBatchSize
+     *
+     * @param argJobInsertBatchSize Value to assign to this.jobInsertBatchSize
+     */
+    public final void setJobInsertBatchSize(final int argJobInsertBatchSize) {
+        this.jobInsertBatchSize = argJobInsertBatchSize;
+    }
 }
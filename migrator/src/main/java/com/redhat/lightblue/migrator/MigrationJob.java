@@ -63,6 +63,14 @@ public class MigrationJob {
         private int consistentDocumentCount;
         private int inconsistentDocumentCount;
         private int overwrittenDocumentCount;
+        private int fetchBatchSize;
+        private int saveBatchSize;
+        private int fingerprintMatchCount;
+        private int fullDiffCount;
+        private int savedDocumentCount;
+        private int failedDocumentCount;
+        private String failedDocuments;
+        private String stageStatistics;
 
         /**
          * Gets the value of activeExecutionId
@@ -266,6 +274,151 @@ public class MigrationJob {
             this.overwrittenDocumentCount = argOverwrittenDocumentCount;
         }
 
+        /**
+         * Gets the value of fetchBatchSize
+         *
+         * @return the value of fetchBatchSize
+         */
+        public final int getFetchBatchSize() {
+            return this.fetchBatchSize;
+        }
+
+        /**
+         * Sets the value of fetchBatchSize
+         *
+         * @param argFetchBatchSize Value to assign to this.fetchBatchSize
+         */
+        public final void setFetchBatchSize(final int argFetchBatchSize) {
+            this.fetchBatchSize = argFetchBatchSize;
+        }
+
+        /**
+         * Gets the value of saveBatchSize
+         *
+         * @return the value of saveBatchSize
+         */
+        public final int getSaveBatchSize() {
+            return this.saveBatchSize;
+        }
+
+        /**
+         * Sets the value of saveBatchSize
+         *
+         * @param argSaveBatchSize Value to assign to this.saveBatchSize
+         */
+        public final void setSaveBatchSize(final int argSaveBatchSize) {
+            this.saveBatchSize = argSaveBatchSize;
+        }
+
+        /**
+         * Gets the value of fingerprintMatchCount
+         *
+         * @return the value of fingerprintMatchCount
+         */
+        public final int getFingerprintMatchCount() {
+            return this.fingerprintMatchCount;
+        }
+
+        /**
+         * Sets the value of fingerprintMatchCount
+         *
+         * @param argFingerprintMatchCount Value to assign to
+         * this.fingerprintMatchCount
+         */
+        public final void setFingerprintMatchCount(final int argFingerprintMatchCount) {
+            this.fingerprintMatchCount = argFingerprintMatchCount;
+        }
+
+        /**
+         * Gets the value of fullDiffCount
+         *
+         * @return the value of fullDiffCount
+         */
+        public final int getFullDiffCount() {
+            return this.fullDiffCount;
+        }
+
+        /**
+         * Sets the value of fullDiffCount
+         *
+         * @param argFullDiffCount Value to assign to this.fullDiffCount
+         */
+        public final void setFullDiffCount(final int argFullDiffCount) {
+            this.fullDiffCount = argFullDiffCount;
+        }
+
+        /**
+         * Gets the value of savedDocumentCount
+         *
+         * @return the value of savedDocumentCount
+         */
+        public final int getSavedDocumentCount() {
+            return this.savedDocumentCount;
+        }
+
+        /**
+         * Sets the value of savedDocumentCount
+         *
+         * @param argSavedDocumentCount Value to assign to this.savedDocumentCount
+         */
+        public final void setSavedDocumentCount(final int argSavedDocumentCount) {
+            this.savedDocumentCount = argSavedDocumentCount;
+        }
+
+        /**
+         * Gets the value of failedDocumentCount
+         *
+         * @return the value of failedDocumentCount
+         */
+        public final int getFailedDocumentCount() {
+            return this.failedDocumentCount;
+        }
+
+        /**
+         * Sets the value of failedDocumentCount
+         *
+         * @param argFailedDocumentCount Value to assign to this.failedDocumentCount
+         */
+        public final void setFailedDocumentCount(final int argFailedDocumentCount) {
+            this.failedDocumentCount = argFailedDocumentCount;
+        }
+
+        /**
+         * Gets the value of failedDocuments
+         *
+         * @return the value of failedDocuments
+         */
+        public final String getFailedDocuments() {
+            return this.failedDocuments;
+        }
+
+        /**
+         * Sets the value of failedDocuments
+         *
+         * @param argFailedDocuments Value to assign to this.failedDocuments
+         */
+        public final void setFailedDocuments(final String argFailedDocuments) {
+            this.failedDocuments = argFailedDocuments;
+        }
+
+        /**
+         * Gets the value of stageStatistics
+         *
+         * @return the value of stageStatistics
+         */
+        public final String getStageStatistics() {
+            return this.stageStatistics;
+        }
+
+        /**
+         * Sets the value of stageStatistics
+         *
+         * @param argStageStatistics Value to assign to this.stageStatistics
+         */
+        public final void setStageStatistics(final String argStageStatistics) {
+            this.stageStatistics = argStageStatistics;
+        }
+
     }
 
     /**
@@ -300,6 +453,27 @@ public class MigrationJob {
 
     private List<JobExecution> jobExecutions;
 
+    /**
+     * Identity of the last source document, in identity order, migrated by
+     * an earlier interrupted run of this job, see Identity.toJson. A
+     * restarted job continues with the documents after this one.
+     */
+    private String checkpointIdentity;
+    private Date checkpointDate;
+
+    /**
+     * Number of times this job was interrupted and made available again
+     * since it last ran to the end
+     */
+    private int resumeCount;
+
+    /**
+     * The controller that claimed this job, and when, if jobs are claimed
+     * with StatusJobClaimer
+     */
+    private String claimedBy;
+    private Date claimDate;
+
     public String get_id() {
         return _id;
     }
@@ -363,4 +537,44 @@ public class MigrationJob {
     public void setJobExecutions(List<JobExecution> a) {
         jobExecutions = a;
     }
+
+    public String getCheckpointIdentity() {
+        return checkpointIdentity;
+    }
+
+    public void setCheckpointIdentity(String s) {
+        checkpointIdentity = s;
+    }
+
+    public Date getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    public void setCheckpointDate(Date d) {
+        checkpointDate = d;
+    }
+
+    public int getResumeCount() {
+        return resumeCount;
+    }
+
+    public void setResumeCount(int n) {
+        resumeCount = n;
+    }
+
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    public void setClaimedBy(String s) {
+        claimedBy = s;
+    }
+
+    public Date getClaimDate() {
+        return claimDate;
+    }
+
+    public void setClaimDate(Date d) {
+        claimDate = d;
+    }
 }
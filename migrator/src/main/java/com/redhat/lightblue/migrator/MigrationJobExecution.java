@@ -1,9 +1,16 @@
 package com.redhat.lightblue.migrator;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class MigrationJobExecution {
 
+    /**
+     * At most this many failed document identities are kept
+     */
+    public static final int MAX_FAILED_IDENTITIES = 100;
+
     private String ownerName;
     private String hostName;
 
@@ -22,6 +29,23 @@ public class MigrationJobExecution {
     private int inconsistentDocumentCount = 0;
     private int overwrittenDocumentCount = 0;
 
+    // batch sizes the migrator ended up using
+    private int fetchBatchSize = 0;
+    private int saveBatchSize = 0;
+
+    // documents found equal by fingerprint vs. documents that needed a diff
+    private int fingerprintMatchCount = 0;
+    private int fullDiffCount = 0;
+
+    // per-stage counters, in the order the stages are first used
+    private final List<StageStatistics> stageStatistics = new ArrayList<>();
+
+    // save results, counted. Only the first MAX_FAILED_IDENTITIES failed
+    // documents are kept, so memory use doesn't grow with the job
+    private int savedDocumentCount = 0;
+    private int failedDocumentCount = 0;
+    private final List<Identity> failedIdentities = new ArrayList<>();
+
     public String getActiveExecutionId() {
         return activeExecutionId;
     }
@@ -54,6 +78,17 @@ public class MigrationJobExecution {
         errorMsg = s;
     }
 
+    /**
+     * Appends the message to the error message, if there is one
+     */
+    public synchronized void addErrorMsg(String s) {
+        if (errorMsg == null) {
+            errorMsg = s;
+        } else {
+            errorMsg = errorMsg + "\n" + s;
+        }
+    }
+
     public Date getActualStartDate() {
         return actualStartDate;
     }
@@ -102,6 +137,22 @@ public class MigrationJobExecution {
         this.overwrittenDocumentCount = overwrittenDocumentCount;
     }
 
+    public int getFetchBatchSize() {
+        return fetchBatchSize;
+    }
+
+    public void setFetchBatchSize(int fetchBatchSize) {
+        this.fetchBatchSize = fetchBatchSize;
+    }
+
+    public int getSaveBatchSize() {
+        return saveBatchSize;
+    }
+
+    public void setSaveBatchSize(int saveBatchSize) {
+        this.saveBatchSize = saveBatchSize;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -109,4 +160,66 @@ public class MigrationJobExecution {
     public void setStatus(String jobStatus) {
         this.status = jobStatus;
     }
+
+    public synchronized List<StageStatistics> getStageStatistics() {
+        return new ArrayList<>(stageStatistics);
+    }
+
+    /**
+     * Returns the statistics for the given stage, creating it if necessary
+     */
+    public synchronized StageStatistics getStageStatistics(String stageName) {
+        for (StageStatistics x : stageStatistics) {
+            if (x.getStageName().equals(stageName)) {
+                return x;
+            }
+        }
+        StageStatistics x = new StageStatistics(stageName);
+        stageStatistics.add(x);
+        return x;
+    }
+
+    /**
+     * Counts the saved and failed documents of a save batch, and keeps the
+     * failed document identities up to MAX_FAILED_IDENTITIES
+     */
+    public synchronized void addSaveBatchResult(SaveBatchResult result) {
+        savedDocumentCount += result.getSavedIdentities().size();
+        failedDocumentCount += result.getFailedIdentities().size();
+        for (Identity id : result.getFailedIdentities()) {
+            if (failedIdentities.size() >= MAX_FAILED_IDENTITIES) {
+                break;
+            }
+            failedIdentities.add(id);
+        }
+    }
+
+    public synchronized int getSavedDocumentCount() {
+        return savedDocumentCount;
+    }
+
+    public synchronized int getFailedDocumentCount() {
+        return failedDocumentCount;
+    }
+
+    /**
+     * Returns the identities of the first MAX_FAILED_IDENTITIES documents
+     * that could not be saved
+     */
+    public synchronized List<Identity> getFailedIdentities() {
+        return new ArrayList<>(failedIdentities);
+    }
+
+    public synchronized int getFingerprintMatchCount() {
+        return fingerprintMatchCount;
+    }
+
+    public synchronized int getFullDiffCount() {
+        return fullDiffCount;
+    }
+
+    public synchronized void addComparisons(int fingerprintMatches, int fullDiffs) {
+        fingerprintMatchCount += fingerprintMatches;
+        fullDiffCount += fullDiffs;
+    }
 }
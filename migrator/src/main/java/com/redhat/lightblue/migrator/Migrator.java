@@ -1,15 +1,34 @@
 package com.redhat.lightblue.migrator;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -24,44 +43,128 @@ import com.redhat.lightblue.client.Literal;
 import com.redhat.lightblue.client.Projection;
 import com.redhat.lightblue.client.Query;
 import com.redhat.lightblue.client.Update;
+import com.redhat.lightblue.client.request.data.DataInsertRequest;
 import com.redhat.lightblue.client.request.data.DataUpdateRequest;
+import com.redhat.lightblue.client.response.LightblueDataResponse;
 import com.redhat.lightblue.client.response.LightblueResponse;
+import com.redhat.lightblue.client.util.ClientConstants;
 
 public abstract class Migrator extends AbstractMonitoredThread {
 
+    public static final String STAGE_SOURCE = "source";
+    public static final String STAGE_DESTINATION = "destination";
+    public static final String STAGE_COMPARE = "compare";
+    public static final String STAGE_SAVE = "save";
+
+    private static final MigrationBatch END_OF_BATCHES = new MigrationBatch(null);
+
+    // Number of document pairs a parallel compare task handles without
+    // splitting further
+    private static final int COMPARE_TASK_SIZE = 16;
+
+    // Number of document pairs compared at a time, so the pairs of a large
+    // batch are not all in memory at once
+    private static final int COMPARE_CHUNK_SIZE = 4096;
+
     private Logger LOGGER;
     private Logger INCONSISTENCY_LOGGER;
 
+    /**
+     * An interrupted job is made available again to resume from its
+     * checkpoint at most this many times, then it fails
+     */
+    public static final int MAX_RESUME_COUNT = 5;
+
+    /**
+     * Source page size of a job that has a spill directory but no
+     * sourcePageSize. Spilling only bounds the heap if the source documents
+     * of a job are read in pages.
+     */
+    public static final int SPILL_PAGE_SIZE = 1000;
+
+    /**
+     * Job ranges are not split into ranges shorter than this
+     */
+    public static final long MIN_SPLIT_MS = 1000l;
+
     private AbstractController controller;
     private MigrationJob migrationJob;
     private ActiveExecution activeExecution;
+    private MigrationJobExecution execution;
+    private volatile Identity checkpointIdentity;
+    private ForkJoinPool comparePool;
 
     private LightblueClient lbClient;
 
-    // Migration context, observable by tests
-    private Map<Identity, JsonNode> sourceDocs;
-    private Map<Identity, JsonNode> destDocs;
-    private Set<Identity> insertDocs;
-    private Set<Identity> rewriteDocs;
+    // Migration context, observable by tests. Batch state is kept in the
+    // batch, this is only the batch the getters show
+    private volatile MigrationBatch observedBatch;
+    private volatile IdentityFields identityFieldPaths;
+    // The pooled worker running this migrator, if not this thread
+    private volatile Thread runner;
+    // Document maps and identity sets that may have spill files
+    private final List<Closeable> spillables = new ArrayList<>();
 
     public Migrator(ThreadGroup grp) {
         super(grp, "Migrator");
     }
 
+    /**
+     * Runs the migrator in the calling thread, a pooled worker, instead of
+     * in this thread. While it runs, interrupting the migrator interrupts the
+     * worker.
+     */
+    public void runInWorker() {
+        runner = Thread.currentThread();
+        try {
+            monitoredRun();
+        } finally {
+            runner = null;
+        }
+    }
+
+    @Override
+    public boolean isInterrupted() {
+        Thread r = runner;
+        return r == null ? super.isInterrupted() : r.isInterrupted();
+    }
+
+    @Override
+    public void interrupt() {
+        Thread r = runner;
+        if (r != null) {
+            r.interrupt();
+        }
+        super.interrupt();
+    }
+
+    /**
+     * Returns the batch the getters below show. Batches migrated one at a
+     * time are shown as soon as they start. In pipelined mode, where several
+     * batches are in different stages, this is the last saved batch.
+     */
+    public MigrationBatch getObservedBatch() {
+        return observedBatch;
+    }
+
     public Map<Identity, JsonNode> getSourceDocs() {
-        return sourceDocs;
+        MigrationBatch batch = observedBatch;
+        return batch == null ? null : batch.getSourceDocs();
     }
 
     public Map<Identity, JsonNode> getDestDocs() {
-        return destDocs;
+        MigrationBatch batch = observedBatch;
+        return batch == null ? null : batch.getDestDocs();
     }
 
     public Set<Identity> getInsertDocs() {
-        return insertDocs;
+        MigrationBatch batch = observedBatch;
+        return batch == null ? null : batch.getInsertDocs();
     }
 
     public Set<Identity> getRewriteDocs() {
-        return rewriteDocs;
+        MigrationBatch batch = observedBatch;
+        return batch == null ? null : batch.getRewriteDocs();
     }
 
     public void setController(AbstractController c) {
@@ -92,9 +195,24 @@ public abstract class Migrator extends AbstractMonitoredThread {
         return activeExecution;
     }
 
+    /**
+     * Returns the execution being migrated, set when migrate() starts
+     */
+    public MigrationJobExecution getExecution() {
+        return execution;
+    }
+
+    /**
+     * Returns the lightblue client for the given configuration. Clients are
+     * shared by all migrators of the controller.
+     */
     public LightblueClient getLightblueClient(String configPath)
             throws IOException {
-        return Utils.getLightblueClient(configPath);
+        if (controller == null) {
+            return Utils.getLightblueClient(configPath);
+        } else {
+            return controller.getLightblueClient(configPath);
+        }
     }
 
     /**
@@ -104,10 +222,32 @@ public abstract class Migrator extends AbstractMonitoredThread {
         return getMigrationConfiguration().getDestinationIdentityFields();
     }
 
+    /**
+     * Returns the identity fields split into path components. Unless
+     * getIdentityFields is overridden, these are the ones held by the
+     * migration configuration.
+     */
+    protected IdentityFields getIdentityFieldPaths() {
+        IdentityFields f = identityFieldPaths;
+        List<String> fields = getIdentityFields();
+        if (f == null || f.getFields() != fields) {
+            f = getMigrationConfiguration().getDestinationIdentityFieldPaths();
+            if (f == null || f.getFields() != fields) {
+                f = new IdentityFields(fields);
+            }
+            identityFieldPaths = f;
+        }
+        return f;
+    }
+
     /**
      * Execute this method before docs are saved to destination (Lightblue). Modifying saveDocsList
      * will affect what gets actually saved. Implementation of this method is responsible for exception handling.
      *
+     * If compactDocuments or spillDirectory is set, sourceDocs and destDocs are CompactDocumentMaps: get()
+     * returns a new copy of the document every time, so changing it does not change the map or what is saved.
+     * Change the documents in saveDocsList instead.
+     *
      * @param sourceDocs docs read from source
      * @param destDocs corresponding docs read from destination
      * @param insertDocs docs which exist in source but not in destination
@@ -120,98 +260,653 @@ public abstract class Migrator extends AbstractMonitoredThread {
     }
 
     public void migrate(MigrationJobExecution execution) {
+        this.execution = execution;
         try {
             ping("Starting migrate()");
             initMigrator();
-            LOGGER.debug("Retrieving source docs");
-            sourceDocs = Utils.getDocumentIdMap(getSourceDocuments(), getIdentityFields());
-            ping("Retrieved source documents");
-            Breakpoint.checkpoint("Migrator:sourceDocs");
-            LOGGER.debug("There are {} source docs:{}", sourceDocs.size(), migrationJob.getConfigurationName());
-            LOGGER.debug("Retrieving destination docs");
-            destDocs = Utils.getDocumentIdMap(getDestinationDocuments(sourceDocs.keySet()), getIdentityFields());
-            ping("Retrieved destination documents");
-            Breakpoint.checkpoint("Migrator:destDocs");
-            LOGGER.debug("sourceDocs={}, destDocs={}", sourceDocs.size(), destDocs.size());
-
-            insertDocs = new HashSet<>();
-            for (Identity id : sourceDocs.keySet()) {
-                if (!destDocs.containsKey(id)) {
-                    insertDocs.add(id);
+            int pageSize = getSourcePageSize();
+            if (pageSize > 0 && getMigrationConfiguration().getPipelineQueueSize() > 0) {
+                migratePipelined(pageSize, execution);
+            } else if (pageSize > 0) {
+                // Streaming mode: read the source in pages, and
+                // process each page before reading the next one, so
+                // only one page of documents is in memory at a time
+                Identity after = getResumeIdentity();
+                MigrationBatch batch;
+                do {
+                    batch = getSourcePage(after, pageSize, execution);
+                    migrateDocuments(batch, execution);
+                    if (batch.getLastIdentity() != null) {
+                        after = batch.getLastIdentity();
+                        checkpointBatch(batch, execution);
+                    }
+                } while (batch.getSourceDocumentCount() >= pageSize && !isInterrupted());
+            } else {
+                LOGGER.debug("Retrieving source docs");
+                long start = System.nanoTime();
+                List<JsonNode> docs = getSourceDocuments();
+                execution.getStageStatistics(STAGE_SOURCE).addBatch(docs == null ? 0 : docs.size(), System.nanoTime() - start);
+                migrateDocuments(new MigrationBatch(docs), execution);
+            }
+            Breakpoint.checkpoint("Migrator:complete");
+            LOGGER.debug("Stage statistics for {}: {}", migrationJob.get_id(), execution.getStageStatistics());
+            LOGGER.debug("Fingerprint matches for {}: {}, full diffs: {}", migrationJob.get_id(),
+                    execution.getFingerprintMatchCount(), execution.getFullDiffCount());
+
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                // Keep the interrupt status, so the job is resumed later
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.error("Error during migration of "+migrationJob.getConfigurationName(), e);
+            StringWriter strw = new StringWriter();
+            e.printStackTrace(new PrintWriter(strw));
+            execution.setErrorMsg(strw.toString());
+        } finally {
+            ping("Finishing up");
+            synchronized (this) {
+                if (comparePool != null) {
+                    comparePool.shutdownNow();
+                    comparePool = null;
                 }
             }
-            Breakpoint.checkpoint("Migrator:insertDocs");
-            LOGGER.debug("There are {} docs to insert", insertDocs.size());
+            closeSpillables(null);
+            cleanupMigrator();
+        }
+    }
 
-            LOGGER.debug("Comparing source and destination docs");
-            rewriteDocs = new HashSet<>();
-            for (Map.Entry<Identity, JsonNode> sourceEntry : sourceDocs.entrySet()) {
-                JsonNode destDoc = destDocs.get(sourceEntry.getKey());
-                if (destDoc != null) {
-                    List<Inconsistency> inconsistencies = Utils.compareDocs(sourceEntry.getValue(), destDoc,
-                            getMigrationConfiguration().getComparisonExclusionPaths(),
-                            getMigrationConfiguration().isIgnoreTimestampMSDiffs());
-                    if (inconsistencies != null && !inconsistencies.isEmpty()) {
-                        rewriteDocs.add(sourceEntry.getKey());
-                        // log as key=value to make parsing easy
-                        // fields to log: config name, job id, dest entity name & version, id field names & values,
-                        //list of inconsistent paths
-                        INCONSISTENCY_LOGGER.warn("configurationName={} destinationEntityName={} destinationEntityVersion={} migrationJobId={} identityFields=\"{}\" identityFieldValues=\"{}\" inconsistentPaths=\"{}\" mismatchedValues=\"{}\"",
-                                getMigrationConfiguration().getConfigurationName(),
-                                getMigrationConfiguration().getDestinationEntityName(),
-                                getMigrationConfiguration().getDestinationEntityVersion(),
-                                migrationJob.get_id(),
-                                StringUtils.join(getIdentityFields(), ","),
-                                sourceEntry.getKey().toString(),
-                                Inconsistency.getPathList(inconsistencies),
-                                Inconsistency.getMismatchedValues(inconsistencies));
+    /**
+     * Returns the source page size of a job. If a spill directory is set,
+     * jobs are always read in pages, of SPILL_PAGE_SIZE documents unless
+     * sourcePageSize is set. Spill files only hold the documents of a batch
+     * after they are read, and a batch is saved from a list of trees, so
+     * only paging bounds the heap.
+     */
+    protected int getSourcePageSize() {
+        MigrationConfiguration cfg = getMigrationConfiguration();
+        int pageSize = cfg.getSourcePageSize();
+        if (pageSize <= 0 && cfg.getSpillDirectory() != null) {
+            pageSize = SPILL_PAGE_SIZE;
+            try {
+                if (getClass().getMethod("getSourceDocuments", Identity.class, int.class).getDeclaringClass() == Migrator.class) {
+                    LOGGER.warn("{} does not read source documents in pages, spilling will not bound the heap", getClass().getName());
+                }
+            } catch (NoSuchMethodException e) {
+                // Can't happen, the method is public
+            }
+        }
+        return pageSize;
+    }
+
+    /**
+     * Reads the page of source documents after the given identity, and
+     * returns it as a batch ending with the identity of its last document
+     */
+    private MigrationBatch getSourcePage(Identity after, int pageSize, MigrationJobExecution execution) {
+        LOGGER.debug("Retrieving {} source docs after {}", pageSize, after);
+        long start = System.nanoTime();
+        List<JsonNode> page = getSourceDocuments(after, pageSize);
+        if (page == null) {
+            page = new ArrayList<>();
+        }
+        execution.getStageStatistics(STAGE_SOURCE).addBatch(page.size(), System.nanoTime() - start);
+        MigrationBatch batch = new MigrationBatch(page);
+        if (!page.isEmpty()) {
+            batch.setLastIdentity(new Identity(page.get(page.size() - 1), getIdentityFieldPaths()));
+        }
+        return batch;
+    }
+
+    /**
+     * Migrates a batch of source documents: reads the corresponding
+     * destination documents, compares them, and saves the missing and
+     * inconsistent ones. The counts in the execution are incremented.
+     */
+    protected void migrateDocuments(MigrationBatch batch, MigrationJobExecution execution) {
+        observedBatch = batch;
+        fetchDestinationDocuments(batch, execution);
+        compareDocuments(batch, execution);
+        saveDocuments(batch, execution);
+    }
+
+    /**
+     * Builds the identity map for the source documents of the batch, and
+     * retrieves the corresponding destination documents
+     */
+    protected void fetchDestinationDocuments(MigrationBatch batch, MigrationJobExecution execution) {
+        long start = System.nanoTime();
+        Map<Identity, JsonNode> sourceDocs = Utils.getDocumentIdMap(batch.getSourceDocuments(), getIdentityFieldPaths(), createDocumentMap());
+        batch.setSourceDocs(sourceDocs);
+        if (sourceDocs instanceof CompactDocumentMap) {
+            // The trees are not needed anymore
+            batch.releaseSourceDocuments();
+        }
+        ping("Retrieved source documents");
+        Breakpoint.checkpoint("Migrator:sourceDocs");
+        LOGGER.debug("There are {} source docs:{}", sourceDocs.size(), migrationJob.getConfigurationName());
+        LOGGER.debug("Retrieving destination docs");
+        Map<Identity, JsonNode> destDocs = Utils.getDocumentIdMap(getDestinationDocuments(sourceDocs.keySet()), getIdentityFieldPaths(), createDocumentMap());
+        batch.setDestDocs(destDocs);
+        ping("Retrieved destination documents");
+        Breakpoint.checkpoint("Migrator:destDocs");
+        LOGGER.debug("sourceDocs={}, destDocs={}", sourceDocs.size(), destDocs.size());
+        execution.getStageStatistics(STAGE_DESTINATION).addBatch(batch.getSourceDocs().size(), System.nanoTime() - start);
+    }
+
+    /**
+     * Returns an empty id-doc map for the documents of a batch. If
+     * compactDocuments is set, documents are kept serialized in the map.
+     */
+    protected Map<Identity, JsonNode> createDocumentMap() {
+        MigrationConfiguration cfg = getMigrationConfiguration();
+        if (cfg.getSpillDirectory() != null) {
+            CompactDocumentMap map = new CompactDocumentMap(cfg.getComparisonExclusionMatcher(), cfg.isIgnoreTimestampMSDiffs(),
+                    cfg.getComparisonTimestampMatcher(), new File(cfg.getSpillDirectory()), cfg.getSpillHeapThreshold());
+            synchronized (spillables) {
+                spillables.add(map);
+            }
+            return map;
+        } else if (cfg.isCompactDocuments()) {
+            return new CompactDocumentMap(cfg.getComparisonExclusionMatcher(), cfg.isIgnoreTimestampMSDiffs(),
+                    cfg.getComparisonTimestampMatcher());
+        } else {
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Returns an empty identity set for the documents of a batch. If a spill
+     * directory is set, identities are written to a file when the heap is
+     * nearly full.
+     */
+    protected Set<Identity> createIdentitySet() {
+        MigrationConfiguration cfg = getMigrationConfiguration();
+        if (cfg.getSpillDirectory() != null) {
+            SpillableIdentitySet set = new SpillableIdentitySet(new File(cfg.getSpillDirectory()), cfg.getSpillHeapThreshold());
+            synchronized (spillables) {
+                spillables.add(set);
+            }
+            return set;
+        } else {
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * Deletes the spill files of the given maps and sets, or of all of them
+     * if null
+     */
+    private void closeSpillables(Collection<?> objs) {
+        synchronized (spillables) {
+            for (Iterator<Closeable> itr = spillables.iterator(); itr.hasNext();) {
+                Closeable x = itr.next();
+                boolean close = objs == null;
+                if (!close) {
+                    // Not contains(), that compares the contents
+                    for (Object o : objs) {
+                        close |= o == x;
+                    }
+                }
+                if (close) {
+                    try {
+                        x.close();
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot delete spill file: {}", e);
                     }
+                    itr.remove();
                 }
             }
-            ping("Checked for inconsistencies");
-            Breakpoint.checkpoint("Migrator:rewriteDocs");
-            LOGGER.debug("There are {} docs to rewrite: {}", rewriteDocs.size(), migrationJob.getConfigurationName());
-            execution.setInconsistentDocumentCount(rewriteDocs.size());
-            execution.setOverwrittenDocumentCount(rewriteDocs.size());
-            execution.setConsistentDocumentCount(sourceDocs.size() - rewriteDocs.size());
-
-            List<JsonNode> saveDocsList = new ArrayList<>();
-            for (Identity id : insertDocs) {
-                saveDocsList.add(sourceDocs.get(id));
+        }
+    }
+
+    /**
+     * Compares the source and destination documents of the batch, and
+     * determines the documents that will be saved
+     */
+    protected void compareDocuments(MigrationBatch batch, MigrationJobExecution execution) {
+        long start = System.nanoTime();
+        Map<Identity, JsonNode> batchSourceDocs = batch.getSourceDocs();
+        Map<Identity, JsonNode> batchDestDocs = batch.getDestDocs();
+        Set<Identity> insertDocs = createIdentitySet();
+        for (Identity id : batchSourceDocs.keySet()) {
+            if (!batchDestDocs.containsKey(id)) {
+                insertDocs.add(id);
+            }
+        }
+        batch.setInsertDocs(insertDocs);
+        Breakpoint.checkpoint("Migrator:insertDocs");
+        LOGGER.debug("There are {} docs to insert", insertDocs.size());
+
+        LOGGER.debug("Comparing source and destination docs");
+        Set<Identity> rewriteDocs = createIdentitySet();
+        int[] counts = new int[2];
+        List<ComparePair> pairs = new ArrayList<>();
+        if (batchSourceDocs instanceof CompactDocumentMap && batchDestDocs instanceof CompactDocumentMap) {
+            // Documents are parsed only if their fingerprints don't match
+            for (Identity id : batchSourceDocs.keySet()) {
+                CompactDocumentMap.CompactDocument destDoc = ((CompactDocumentMap) batchDestDocs).getCompact(id);
+                if (destDoc != null) {
+                    pairs.add(new ComparePair(id, ((CompactDocumentMap) batchSourceDocs).getCompact(id), destDoc));
+                    if (pairs.size() >= COMPARE_CHUNK_SIZE) {
+                        comparePairs(pairs, rewriteDocs, counts);
+                    }
+                }
             }
-            // Bug workaround: lightblue save API uses _id to find the old doc, but at this point, saveDocsList have documents with no _id
-            // So, we find the docs in destDocs using their unique identifier, get _id from them, and add it to the docs
-            for (Identity id : rewriteDocs) {
-                JsonNode sourceDoc = sourceDocs.get(id);
-                JsonNode destDoc = destDocs.get(id);
+        } else {
+            for (Map.Entry<Identity, JsonNode> sourceEntry : batchSourceDocs.entrySet()) {
+                JsonNode destDoc = batchDestDocs.get(sourceEntry.getKey());
                 if (destDoc != null) {
-                    ((ObjectNode) sourceDoc).set("_id", ((ObjectNode) destDoc).get("_id"));
+                    pairs.add(new ComparePair(sourceEntry.getKey(), sourceEntry.getValue(), destDoc));
+                    if (pairs.size() >= COMPARE_CHUNK_SIZE) {
+                        comparePairs(pairs, rewriteDocs, counts);
+                    }
                 }
-                saveDocsList.add(sourceDoc);
             }
+        }
+        comparePairs(pairs, rewriteDocs, counts);
+        batch.setRewriteDocs(rewriteDocs);
+        execution.addComparisons(counts[0], counts[1]);
+        ping("Checked for inconsistencies");
+        Breakpoint.checkpoint("Migrator:rewriteDocs");
+        LOGGER.debug("There are {} docs to rewrite: {}", rewriteDocs.size(), migrationJob.getConfigurationName());
+        execution.setInconsistentDocumentCount(execution.getInconsistentDocumentCount() + rewriteDocs.size());
+        execution.setOverwrittenDocumentCount(execution.getOverwrittenDocumentCount() + rewriteDocs.size());
+        execution.setConsistentDocumentCount(execution.getConsistentDocumentCount() + batchSourceDocs.size() - rewriteDocs.size());
+
+        List<JsonNode> saveDocsList = new ArrayList<>();
+        for (Identity id : batch.getInsertDocs()) {
+            saveDocsList.add(batchSourceDocs.get(id));
+        }
+        // Bug workaround: lightblue save API uses _id to find the old doc, but at this point, saveDocsList have documents with no _id
+        // So, we find the docs in destDocs using their unique identifier, get _id from them, and add it to the docs
+        for (Identity id : batch.getRewriteDocs()) {
+            JsonNode sourceDoc = batchSourceDocs.get(id);
+            JsonNode destDoc = batchDestDocs.get(id);
+            if (destDoc != null) {
+                ((ObjectNode) sourceDoc).set("_id", ((ObjectNode) destDoc).get("_id"));
+            }
+            saveDocsList.add(sourceDoc);
+        }
+        batch.setSaveDocsList(saveDocsList);
 
-            execution.setProcessedDocumentCount(sourceDocs.size());
+        execution.setProcessedDocumentCount(execution.getProcessedDocumentCount() + batchSourceDocs.size());
+        execution.getStageStatistics(STAGE_COMPARE).addBatch(batchSourceDocs.size(), System.nanoTime() - start);
+    }
 
-            LOGGER.debug("There are {} docs to save: {}", saveDocsList.size(), migrationJob.getConfigurationName());
-            beforeSaveToDestination(sourceDocs, destDocs, insertDocs, rewriteDocs, saveDocsList);
+    /**
+     * A source and destination document with the same identity, and the
+     * result of comparing them
+     */
+    private static class ComparePair {
+        final Identity id;
+        final JsonNode sourceDoc;
+        final JsonNode destDoc;
+        // Set instead of the documents if they are kept serialized
+        final CompactDocumentMap.CompactDocument compactSourceDoc;
+        final CompactDocumentMap.CompactDocument compactDestDoc;
+        boolean fingerprintMatch;
+        List<Inconsistency> inconsistencies;
+
+        ComparePair(Identity id, JsonNode sourceDoc, JsonNode destDoc) {
+            this.id = id;
+            this.sourceDoc = sourceDoc;
+            this.destDoc = destDoc;
+            this.compactSourceDoc = null;
+            this.compactDestDoc = null;
+        }
+
+        ComparePair(Identity id, CompactDocumentMap.CompactDocument sourceDoc, CompactDocumentMap.CompactDocument destDoc) {
+            this.id = id;
+            this.sourceDoc = null;
+            this.destDoc = null;
+            this.compactSourceDoc = sourceDoc;
+            this.compactDestDoc = destDoc;
+        }
+    }
+
+    /**
+     * Compares the pairs, adds the identities of the inconsistent documents
+     * to rewriteDocs and logs them, and clears the pairs. counts[0] is
+     * incremented by the number of fingerprint matches, and counts[1] by the
+     * number of full comparisons.
+     */
+    private void comparePairs(List<ComparePair> pairs, Set<Identity> rewriteDocs, int[] counts) {
+        comparePairs(pairs);
+        for (ComparePair pair : pairs) {
+            if (pair.fingerprintMatch) {
+                counts[0]++;
+            } else {
+                counts[1]++;
+                List<Inconsistency> inconsistencies = pair.inconsistencies;
+                if (inconsistencies != null && !inconsistencies.isEmpty()) {
+                    rewriteDocs.add(pair.id);
+                    // log as key=value to make parsing easy
+                    // fields to log: config name, job id, dest entity name & version, id field names & values,
+                    //list of inconsistent paths
+                    INCONSISTENCY_LOGGER.warn("configurationName={} destinationEntityName={} destinationEntityVersion={} migrationJobId={} identityFields=\"{}\" identityFieldValues=\"{}\" inconsistentPaths=\"{}\" mismatchedValues=\"{}\"",
+                            getMigrationConfiguration().getConfigurationName(),
+                            getMigrationConfiguration().getDestinationEntityName(),
+                            getMigrationConfiguration().getDestinationEntityVersion(),
+                            migrationJob.get_id(),
+                            StringUtils.join(getIdentityFields(), ","),
+                            pair.id.toString(),
+                            Inconsistency.getPathList(inconsistencies),
+                            Inconsistency.getMismatchedValues(inconsistencies));
+                }
+            }
+        }
+        pairs.clear();
+    }
+
+    /**
+     * Compares the pairs, in parallel if compareThreads is more than one
+     */
+    private void comparePairs(List<ComparePair> pairs) {
+        int nThreads = getMigrationConfiguration().getCompareThreads();
+        if (nThreads <= 1 || pairs.size() <= COMPARE_TASK_SIZE) {
+            for (ComparePair pair : pairs) {
+                compare(pair);
+            }
+        } else {
+            ForkJoinPool pool;
+            synchronized (this) {
+                if (comparePool == null) {
+                    comparePool = new ForkJoinPool(nThreads);
+                }
+                pool = comparePool;
+            }
             try {
-                List<LightblueResponse> responses = save(saveDocsList);
-                ping("Saved documents");
-                LOGGER.info("source: {}, dest: {}, written: {}", sourceDocs.size(), destDocs.size(), saveDocsList.size());
-            } catch (LightblueException ex) {
-                LOGGER.error("Error during migration of {}:{}", migrationJob.getConfigurationName(), ex.getMessage());
-                execution.setErrorMsg(ex.getMessage());
+                waitFor(pool.submit(new CompareTask(pairs, 0, pairs.size())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
-            Breakpoint.checkpoint("Migrator:complete");
+        }
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("Error during migration of "+migrationJob.getConfigurationName(), e);
-            StringWriter strw = new StringWriter();
-            e.printStackTrace(new PrintWriter(strw));
-            execution.setErrorMsg(strw.toString());
+    private void compare(ComparePair pair) {
+        FieldPathMatcher exclusionPaths = getMigrationConfiguration().getComparisonExclusionMatcher();
+        FieldPathMatcher timestampPaths = getMigrationConfiguration().getComparisonTimestampMatcher();
+        boolean ignoreTimestampMSDiffs = getMigrationConfiguration().isIgnoreTimestampMSDiffs();
+        if (pair.compactSourceDoc != null) {
+            // Fingerprints are computed when the docs are stored, and
+            // the trees are only built for the docs that need a diff
+            if (pair.compactSourceDoc.getFingerprint() == pair.compactDestDoc.getFingerprint()) {
+                pair.fingerprintMatch = true;
+            } else {
+                pair.inconsistencies = Utils.compareDocs(pair.compactSourceDoc.inflate(), pair.compactDestDoc.inflate(),
+                        exclusionPaths, ignoreTimestampMSDiffs, getMigrationConfiguration().getCompareMode(), timestampPaths);
+            }
+        } else if (DocumentFingerprint.of(pair.sourceDoc, exclusionPaths, ignoreTimestampMSDiffs, timestampPaths)
+                == DocumentFingerprint.of(pair.destDoc, exclusionPaths, ignoreTimestampMSDiffs, timestampPaths)) {
+            // Most docs are the same, so check that cheaply first
+            pair.fingerprintMatch = true;
+        } else {
+            pair.inconsistencies = Utils.compareDocs(pair.sourceDoc, pair.destDoc, exclusionPaths, ignoreTimestampMSDiffs,
+                    getMigrationConfiguration().getCompareMode(), timestampPaths);
+        }
+    }
+
+    /**
+     * Compares pairs[from..to), splitting the range in half until it is
+     * small enough
+     */
+    private class CompareTask extends RecursiveAction {
+        private static final long serialVersionUID = 1l;
+
+        private final List<ComparePair> pairs;
+        private final int from;
+        private final int to;
+
+        CompareTask(List<ComparePair> pairs, int from, int to) {
+            this.pairs = pairs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= COMPARE_TASK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    compare(pairs.get(i));
+                }
+            } else {
+                int mid = (from + to) / 2;
+                invokeAll(new CompareTask(pairs, from, mid), new CompareTask(pairs, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Saves the missing and inconsistent documents of the batch
+     */
+    protected void saveDocuments(MigrationBatch batch, MigrationJobExecution execution) {
+        long start = System.nanoTime();
+        List<JsonNode> saveDocsList = batch.getSaveDocsList();
+        LOGGER.debug("There are {} docs to save: {}", saveDocsList.size(), migrationJob.getConfigurationName());
+        beforeSaveToDestination(batch.getSourceDocs(), batch.getDestDocs(), batch.getInsertDocs(), batch.getRewriteDocs(), saveDocsList);
+        try {
+            List<LightblueResponse> responses = save(saveDocsList);
+            ping("Saved documents");
+            int written = getModifiedCount(responses);
+            LOGGER.info("source: {}, dest: {}, written: {}", batch.getSourceDocs().size(), batch.getDestDocs().size(),
+                    written < 0 ? saveDocsList.size() : written);
+        } catch (LightblueException ex) {
+            LOGGER.error("Error during migration of {}:{}", migrationJob.getConfigurationName(), ex.getMessage());
+            execution.addErrorMsg(ex.getMessage());
+        }
+        execution.getStageStatistics(STAGE_SAVE).addBatch(saveDocsList.size(), System.nanoTime() - start);
+        closeSpillables(Arrays.asList(batch.getSourceDocs(), batch.getDestDocs(), batch.getInsertDocs(), batch.getRewriteDocs()));
+    }
+
+    /**
+     * Returns the identity a paged migration should continue after, or null
+     * to start from the beginning. If an earlier run of this job was
+     * interrupted, this is the identity of the last source document it
+     * completed. Unlike an offset, this stays correct if documents are
+     * inserted or deleted before it between the runs.
+     */
+    protected Identity getResumeIdentity() {
+        String id = migrationJob == null ? null : migrationJob.getCheckpointIdentity();
+        if (id == null || id.isEmpty()) {
+            return null;
+        }
+        LOGGER.info("Resuming job {} after {}", migrationJob.get_id(), id);
+        return Identity.parse(id);
+    }
+
+    /**
+     * Saves the last identity of a saved batch as the checkpoint, unless a
+     * save of this execution failed. A resumed job starts after the
+     * checkpoint, so it must not be past documents that were not saved:
+     * once a save fails, the checkpoint stays at the last batch before it.
+     */
+    private void checkpointBatch(MigrationBatch batch, MigrationJobExecution execution) {
+        if (batch.getLastIdentity() == null) {
+            return;
+        }
+        if (execution.getErrorMsg() != null) {
+            LOGGER.debug("Not moving the checkpoint of job {} past {}, a save failed", migrationJob.get_id(), checkpointIdentity);
+            return;
+        }
+        saveCheckpoint(batch.getLastIdentity());
+    }
+
+    /**
+     * Records in the migration job that the source documents up to and
+     * including the given identity are migrated. Failing to save a
+     * checkpoint does not fail the job, it only means a restarted job will
+     * redo more work.
+     */
+    protected void saveCheckpoint(Identity last) {
+        checkpointIdentity = last;
+        if (lbClient != null) {
+            DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", null);
+            updateRequest.where(Query.withValue("_id", Query.eq, migrationJob.get_id()));
+            updateRequest.returns(Projection.includeField("_id"));
+            updateRequest.updates(Update.set("checkpointIdentity", last.toJson()).
+                    more("checkpointDate", Literal.value(new Date())));
+            try {
+                lbClient.data(updateRequest);
+                ping("Saved checkpoint");
+            } catch (Exception e) {
+                LOGGER.warn("Cannot save checkpoint {} for job {}: {}", last, migrationJob.get_id(), e);
+            }
+        }
+    }
+
+    /**
+     * Runs destination fetch, compare, and save in their own threads,
+     * connected by bounded queues. While this thread reads the next source
+     * page, the previous pages are fetched, compared, and saved. The number
+     * of pages in memory is bounded by the queue sizes.
+     */
+    private void migratePipelined(int pageSize, final MigrationJobExecution execution) throws Exception {
+        int queueSize = getMigrationConfiguration().getPipelineQueueSize();
+        LOGGER.debug("Pipelined migration, page size {}, queue size {}", pageSize, queueSize);
+        BlockingQueue<MigrationBatch> destQueue = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<MigrationBatch> compareQueue = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<MigrationBatch> saveQueue = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService stages = Executors.newFixedThreadPool(3, new StageThreadFactory());
+        // Stages are waited for in the order they end, so a failed stage
+        // is seen even if an earlier stage is blocked on its queue
+        CompletionService<Void> completed = new ExecutorCompletionService<>(stages);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            futures.add(completed.submit(new PipelineStage(STAGE_DESTINATION, destQueue, compareQueue, execution) {
+                @Override
+                protected void process(MigrationBatch batch) {
+                    fetchDestinationDocuments(batch, execution);
+                }
+            }));
+            futures.add(completed.submit(new PipelineStage(STAGE_COMPARE, compareQueue, saveQueue, execution) {
+                @Override
+                protected void process(MigrationBatch batch) {
+                    compareDocuments(batch, execution);
+                }
+            }));
+            futures.add(completed.submit(new PipelineStage(STAGE_SAVE, saveQueue, null, execution) {
+                @Override
+                protected void process(MigrationBatch batch) {
+                    saveDocuments(batch, execution);
+                    observedBatch = batch;
+                    // Pages are saved in order, so everything up to
+                    // here is done
+                    checkpointBatch(batch, execution);
+                }
+            }));
+
+            Identity after = getResumeIdentity();
+            MigrationBatch batch;
+            do {
+                batch = getSourcePage(after, pageSize, execution);
+                enqueue(destQueue, batch, futures);
+                if (batch.getLastIdentity() != null) {
+                    after = batch.getLastIdentity();
+                }
+            } while (batch.getSourceDocumentCount() >= pageSize && !isInterrupted());
+            enqueue(destQueue, END_OF_BATCHES, futures);
+
+            for (int n = 0; n < futures.size();) {
+                Future<Void> f = completed.poll(1, TimeUnit.SECONDS);
+                if (f == null) {
+                    ping("Waiting for pipeline");
+                } else {
+                    // Throws the exception of a failed stage. The
+                    // other stages are interrupted below
+                    f.get();
+                    n++;
+                }
+            }
         } finally {
-            ping("Finishing up");
-            cleanupMigrator();
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the future to complete and returns its result, pinging the
+     * thread monitor while waiting
+     */
+    protected <T> T waitFor(Future<T> future) throws InterruptedException, ExecutionException {
+        while (true) {
+            try {
+                return future.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                ping("Waiting for " + future);
+            }
+        }
+    }
+
+    /**
+     * Puts the batch into the queue, pinging while the queue is full. Fails
+     * if one of the stages failed, otherwise we'd wait forever for the
+     * failed stage to take from the queue.
+     */
+    private void enqueue(BlockingQueue<MigrationBatch> queue, MigrationBatch batch, List<Future<Void>> stages)
+            throws Exception {
+        do {
+            for (Future<Void> f : stages) {
+                if (f.isDone()) {
+                    // Stages don't end before the last batch, so
+                    // this will throw the exception of the failed stage
+                    f.get();
+                }
+            }
+            ping("Waiting for pipeline");
+        } while (!queue.offer(batch, 1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A pipeline stage takes batches from its input queue, processes them,
+     * and puts them into its output queue until it sees the end marker.
+     */
+    private abstract class PipelineStage implements Callable<Void> {
+        private final String name;
+        private final BlockingQueue<MigrationBatch> in;
+        private final BlockingQueue<MigrationBatch> out;
+        private final MigrationJobExecution execution;
+
+        public PipelineStage(String name,
+                             BlockingQueue<MigrationBatch> in,
+                             BlockingQueue<MigrationBatch> out,
+                             MigrationJobExecution execution) {
+            this.name = name;
+            this.in = in;
+            this.out = out;
+            this.execution = execution;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            StageStatistics stats = execution.getStageStatistics(name);
+            while (true) {
+                stats.sampleQueueDepth(in.size());
+                MigrationBatch batch = in.take();
+                if (batch != END_OF_BATCHES) {
+                    process(batch);
+                }
+                if (out != null) {
+                    out.put(batch);
+                }
+                if (batch == END_OF_BATCHES) {
+                    return null;
+                }
+            }
+        }
+
+        protected abstract void process(MigrationBatch batch);
+    }
+
+    private class StageThreadFactory implements ThreadFactory {
+        private int n = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(getThreadGroup(), r, getName() + ":stage-" + (n++));
+            t.setDaemon(true);
+            return t;
         }
     }
 
@@ -232,15 +927,163 @@ public abstract class Migrator extends AbstractMonitoredThread {
      */
     public abstract List<JsonNode> getSourceDocuments();
 
+    /**
+     * Should return a page of at most n source documents whose identities
+     * come after the given identity, sorted by identity. after is null for
+     * the first page. This is used when sourcePageSize or spillDirectory is
+     * set in the migration configuration. A page with fewer documents than
+     * requested is the last page.
+     *
+     * The default implementation does not do paging: it returns all source
+     * documents for the first page, and nothing for the subsequent pages.
+     */
+    public List<JsonNode> getSourceDocuments(Identity after, int n) {
+        if (after == null) {
+            return getSourceDocuments();
+        } else {
+            return new ArrayList<>();
+        }
+    }
+
     /**
      * Should return a list of destination documents
      */
     public abstract List<JsonNode> getDestinationDocuments(Collection<Identity> docs);
 
+    /**
+     * Saves the documents to the destination. The returned responses are
+     * only used to count the saved documents using the response metadata
+     * (see getModifiedCount), so implementations should not ask lightblue to
+     * return the saved documents. Throws LightblueException if some documents
+     * cannot be saved.
+     */
     public abstract List<LightblueResponse> save(List<JsonNode> docs) throws LightblueException;
 
+    /**
+     * Returns the number of documents modified by the given save responses
+     * based on the response metadata, or -1 if it cannot be determined
+     */
+    public static int getModifiedCount(List<LightblueResponse> responses) {
+        if (responses == null) {
+            return -1;
+        }
+        int n = 0;
+        for (LightblueResponse response : responses) {
+            if (response instanceof LightblueDataResponse) {
+                n += ((LightblueDataResponse) response).parseModifiedCount();
+            } else {
+                return -1;
+            }
+        }
+        return n;
+    }
+
     public abstract String createRangeQuery(Date startDate, Date endDate);
 
+    /**
+     * Should return the number of source documents matching the query, or -1
+     * if it cannot be determined. This is used to split large consistency
+     * checker jobs. The default implementation returns -1, so jobs are not
+     * split.
+     */
+    public int countSourceDocuments(String query) {
+        return -1;
+    }
+
+    /**
+     * Returns a generated, available job for the date range
+     */
+    public MigrationJob createRangeJob(Date startDate, Date endDate) {
+        MigrationJob mj = new MigrationJob();
+        mj.setConfigurationName(getMigrationConfiguration().getConfigurationName());
+        mj.setScheduledDate(new Date());
+        mj.setGenerated(true);
+        mj.setStatus(MigrationJob.STATE_AVAILABLE);
+        mj.setConsistencyChecker(new MigrationJob.ConsistencyChecker());
+        mj.getConsistencyChecker().setJobRangeBegin(ClientConstants.getDateFormat().format(startDate));
+        mj.getConsistencyChecker().setJobRangeEnd(ClientConstants.getDateFormat().format(endDate));
+        mj.getConsistencyChecker().setConfigurationName(mj.getConfigurationName());
+        mj.setQuery(createRangeQuery(startDate, endDate));
+        return mj;
+    }
+
+    /**
+     * Splits [startDate,endDate) into consecutive ranges containing at most
+     * maxDocs source documents each, by halving the ranges that have more.
+     * A range is halved only if both halves are at least MIN_SPLIT_MS long,
+     * so no range shorter than MIN_SPLIT_MS is created. Returns
+     * [startDate,endDate) as the only range if the documents cannot be
+     * counted.
+     */
+    public List<Date[]> splitRange(Date startDate, Date endDate, int maxDocs) {
+        List<Date[]> ranges = new ArrayList<>();
+        splitRange(startDate, endDate, maxDocs, countSourceDocuments(createRangeQuery(startDate, endDate)), ranges);
+        return ranges;
+    }
+
+    private void splitRange(Date startDate, Date endDate, int maxDocs, int count, List<Date[]> ranges) {
+        long span = endDate.getTime() - startDate.getTime();
+        if (count <= maxDocs || span < 2 * MIN_SPLIT_MS) {
+            ranges.add(new Date[]{startDate, endDate});
+        } else {
+            Date mid = new Date(startDate.getTime() + span / 2);
+            splitRange(startDate, mid, maxDocs, countSourceDocuments(createRangeQuery(startDate, mid)), ranges);
+            splitRange(mid, endDate, maxDocs, countSourceDocuments(createRangeQuery(mid, endDate)), ranges);
+        }
+    }
+
+    /**
+     * If this is a generated job with more than maxJobDocuments source
+     * documents, gives the tail of its range back as new jobs, and keeps the
+     * head. Jobs created before the data grew, or before maxJobDocuments was
+     * set, are split this way when they start. A job resuming from a
+     * checkpoint is not split: the interrupted run may have processed
+     * documents past the head range, and the tail jobs would redo them.
+     */
+    private void splitOversizedJob() {
+        int maxDocs = getMigrationConfiguration().getMaxJobDocuments();
+        MigrationJob.ConsistencyChecker cc = migrationJob.getConsistencyChecker();
+        if (maxDocs <= 0 || !migrationJob.isGenerated() || cc == null
+                || cc.getJobRangeBegin() == null || cc.getJobRangeEnd() == null) {
+            return;
+        }
+        if (migrationJob.getCheckpointIdentity() != null && !migrationJob.getCheckpointIdentity().isEmpty()) {
+            LOGGER.debug("Not splitting job {}, it resumes after {}", migrationJob.get_id(), migrationJob.getCheckpointIdentity());
+            return;
+        }
+        try {
+            Date startDate = ClientConstants.getDateFormat().parse(cc.getJobRangeBegin());
+            Date endDate = ClientConstants.getDateFormat().parse(cc.getJobRangeEnd());
+            List<Date[]> ranges = splitRange(startDate, endDate, maxDocs);
+            if (ranges.size() > 1) {
+                List<MigrationJob> tail = new ArrayList<>();
+                for (Date[] range : ranges.subList(1, ranges.size())) {
+                    tail.add(createRangeJob(range[0], range[1]));
+                }
+                // Insert the tail first: if narrowing this job fails,
+                // the tail is checked twice, but nothing is lost
+                DataInsertRequest ins = new DataInsertRequest(MigrationJob.ENTITY_NAME, null);
+                ins.create(tail);
+                lbClient.data(ins);
+
+                Date headEnd = ranges.get(0)[1];
+                String query = createRangeQuery(startDate, headEnd);
+                String rangeEnd = ClientConstants.getDateFormat().format(headEnd);
+                DataUpdateRequest upd = new DataUpdateRequest(MigrationJob.ENTITY_NAME, null);
+                upd.where(Query.withValue("_id", Query.eq, migrationJob.get_id()));
+                upd.updates(Update.set("query", query).more("consistencyChecker.jobRangeEnd", rangeEnd));
+                lbClient.data(upd);
+                migrationJob.setQuery(query);
+                cc.setJobRangeEnd(rangeEnd);
+                LOGGER.info("Split job {}: kept {}-{}, created {} jobs for the rest", migrationJob.get_id(),
+                        cc.getJobRangeBegin(), rangeEnd, tail.size());
+                controller.getController().jobsCreated(getMigrationConfiguration());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Cannot split job {}, processing it whole: {}", migrationJob.get_id(), e);
+        }
+    }
+
     protected void initLoggers() {
         LOGGER = LoggerFactory.getLogger(Migrator.class.getName() + "." + getMigrationConfiguration().getConfigurationName());
         INCONSISTENCY_LOGGER = LoggerFactory.getLogger("inconsistency." + getMigrationConfiguration().getConfigurationName());
@@ -254,6 +1097,7 @@ public abstract class Migrator extends AbstractMonitoredThread {
         // processed, so it doesn't show up in other controllers'
         // tasks lists
         lbClient = controller.getController().getLightblueClient();
+        splitOversizedJob();
         DataUpdateRequest updateRequest = new DataUpdateRequest("migrationJob", null);
         updateRequest.where(Query.withValue("_id", Query.eq, migrationJob.get_id()));
         updateRequest.returns(Projection.includeField("_id"));
@@ -294,12 +1138,36 @@ public abstract class Migrator extends AbstractMonitoredThread {
             updateRequest = new DataUpdateRequest("migrationJob", null);
             updateRequest.where(Query.withValue("_id", Query.eq, migrationJob.get_id()));
             updateRequest.returns(Projection.includeField("_id"));
-            if (execution.getErrorMsg() != null) {
+            String jobStatus;
+            Update.Set jobUpdate;
+            // Clear the interrupt flag, so the update below can go through
+            if (Thread.interrupted()) {
+                execution.addErrorMsg("Interrupted after " + checkpointIdentity);
                 execution.setStatus(MigrationJob.STATE_FAILED);
+                int resumeCount = migrationJob.getResumeCount() + 1;
+                if (resumeCount > MAX_RESUME_COUNT) {
+                    // A job that never finishes would be resumed
+                    // forever, give up on it
+                    LOGGER.error("Job {} was interrupted {} times, marking it failed", migrationJob.get_id(), resumeCount);
+                    jobStatus = MigrationJob.STATE_FAILED;
+                } else {
+                    // Killed before finishing, make the job available
+                    // again so it resumes from the last checkpoint,
+                    // which is already saved
+                    jobStatus = MigrationJob.STATE_AVAILABLE;
+                }
+                jobUpdate = Update.set("status", jobStatus).more("resumeCount", resumeCount);
             } else {
-                execution.setStatus(MigrationJob.STATE_COMPLETED);
+                if (execution.getErrorMsg() != null) {
+                    execution.setStatus(MigrationJob.STATE_FAILED);
+                } else {
+                    execution.setStatus(MigrationJob.STATE_COMPLETED);
+                }
+                jobStatus = execution.getStatus();
+                // The job ran to the end, a rerun should start over
+                jobUpdate = Update.set("status", jobStatus).more("checkpointIdentity", "").more("resumeCount", 0);
             }
-            updateRequest.updates(Update.update(Update.set("status", execution.getStatus()),
+            updateRequest.updates(Update.update(jobUpdate,
                     Update.forEach("jobExecutions",
                             Query.withValue("activeExecutionId", Query.eq, activeExecution.get_id()),
                             Update.set("status", execution.getStatus()).
@@ -308,13 +1176,21 @@ public abstract class Migrator extends AbstractMonitoredThread {
                             more("consistentDocumentCount", execution.getConsistentDocumentCount()).
                             more("inconsistentDocumentCount", execution.getInconsistentDocumentCount()).
                             more("overwrittenDocumentCount", execution.getOverwrittenDocumentCount()).
+                            more("fetchBatchSize", execution.getFetchBatchSize()).
+                            more("saveBatchSize", execution.getSaveBatchSize()).
+                            more("fingerprintMatchCount", execution.getFingerprintMatchCount()).
+                            more("fullDiffCount", execution.getFullDiffCount()).
+                            more("savedDocumentCount", execution.getSavedDocumentCount()).
+                            more("failedDocumentCount", execution.getFailedDocumentCount()).
+                            more("failedDocuments", StringUtils.join(execution.getFailedIdentities(), ";")).
+                            more("stageStatistics", StringUtils.join(execution.getStageStatistics(), ";")).
                             more("actualEndDate", Literal.value(new Date())))));
 
             response = lbClient.data(updateRequest);
         } catch (Exception e) {
             LOGGER.error("Cannot update job {}, {} response:{}", migrationJob.get_id(), e, (response == null ? "null" : response.getJson()));
         }
-        controller.unlock(activeExecution.get_id());
+        controller.releaseJob(activeExecution.get_id());
     }
 
     private String quote(String s) {
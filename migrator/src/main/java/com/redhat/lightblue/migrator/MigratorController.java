@@ -3,9 +3,11 @@ package com.redhat.lightblue.migrator;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
 
 import org.slf4j.Logger;
@@ -22,13 +24,57 @@ public class MigratorController extends AbstractController {
 
     private final Random rnd = new Random();
 
+    /**
+     * Jobs locked by this controller, but not started yet. Only the
+     * controller thread uses this.
+     */
+    private final Queue<LockRecord> prefetchedJobs = new LinkedList<>();
+
     public static final int JOB_FETCH_BATCH_SIZE = 64;
 
-    private static final class LockRecord {
+    /**
+     * In partitioned mode, at most this many batches are searched for the
+     * jobs of this member before stealing jobs of other members
+     */
+    public static final int MAX_PARTITION_SCAN_BATCHES = 8;
+
+    /**
+     * The jobs to claim in a prefetch pass
+     */
+    private enum Slice {
+        ALL, MINE, OTHERS
+    }
+
+    // Set in partitioned mode
+    private Membership membership;
+
+    // Runs the migrators, set when the controller thread starts
+    private volatile MigratorPool pool;
+
+    /**
+     * When no jobs are found, the controller waits for MIN_IDLE_WAIT_MS
+     * first, and doubles the wait every time no jobs are found, up to
+     * MAX_IDLE_WAIT_MS. The wait is cut short by wakeup().
+     */
+    public static final long MIN_IDLE_WAIT_MS = 1000l;
+    public static final long MAX_IDLE_WAIT_MS = 30000l;
+
+    /**
+     * Configuration is reloaded, and the membership heartbeat is checked, at
+     * least this often while all threads are busy
+     */
+    public static final long CONFIG_REFRESH_MS = 10000l;
+
+    private final JobClaimer claimer;
+
+    private final Object wakeupLock = new Object();
+    private boolean wakeupSignalled = false;
+
+    static final class LockRecord {
         final MigrationJob mj;
         final ActiveExecution ae;
 
-        public LockRecord(MigrationJob mj, ActiveExecution ae) {
+        LockRecord(MigrationJob mj, ActiveExecution ae) {
             this.mj = mj;
             this.ae = ae;
         }
@@ -37,18 +83,78 @@ public class MigratorController extends AbstractController {
     public MigratorController(Controller controller, MigrationConfiguration migrationConfiguration) {
         super(controller, migrationConfiguration, "Migrators:" + migrationConfiguration.getConfigurationName());
         setName("MigratorController-" + migrationConfiguration.getConfigurationName());
+        if (migrationConfiguration.getJobClaimerClass() == null) {
+            claimer = new LockingJobClaimer();
+        } else {
+            try {
+                claimer = (JobClaimer) Class.forName(migrationConfiguration.getJobClaimerClass()).getConstructor().newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
-    private LockRecord lock(MigrationJob mj)
-            throws Exception {
-        ActiveExecution ae = lock(mj.get_id());
-        if (ae != null) {
-            return new LockRecord(mj, ae);
-        } else {
-            return null;
+    public JobClaimer getJobClaimer() {
+        return claimer;
+    }
+
+    /**
+     * Returns the migrators of this controller that are running
+     */
+    public List<Migrator> getActiveMigrators() {
+        MigratorPool p = pool;
+        return p == null ? new ArrayList<Migrator>() : p.getActiveMigrators();
+    }
+
+    /**
+     * Wakes up the controller thread if it is waiting for a migrator to
+     * finish, or for jobs to become available. Called when a migrator ends,
+     * and when jobs are created for this configuration.
+     */
+    public void wakeup() {
+        synchronized (wakeupLock) {
+            wakeupSignalled = true;
+            wakeupLock.notifyAll();
         }
     }
 
+    /**
+     * Waits until wakeup() is called, or timeout msecs pass. Returns true if
+     * woken up. A wakeup that came before this call is not lost.
+     */
+    boolean awaitWakeup(long timeout) throws InterruptedException {
+        synchronized (wakeupLock) {
+            long end = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (!wakeupSignalled && remaining > 0) {
+                wakeupLock.wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+            boolean ret = wakeupSignalled;
+            wakeupSignalled = false;
+            return ret;
+        }
+    }
+
+    /**
+     * Returns the wait after the next search that finds no jobs: back to
+     * MIN_IDLE_WAIT_MS if the last wait was cut short by a wakeup, otherwise
+     * twice the last wait, up to MAX_IDLE_WAIT_MS
+     */
+    static long nextIdleWait(long idleWait, boolean wokenUp) {
+        return wokenUp ? MIN_IDLE_WAIT_MS : Math.min(idleWait * 2, MAX_IDLE_WAIT_MS);
+    }
+
+    /**
+     * Returns the time to wait after finding no jobs: a random time
+     * between half of idleWait and idleWait, so controllers on different
+     * nodes don't query in lockstep
+     */
+    private long jitter(long idleWait) {
+        long half = idleWait / 2;
+        return half + (long) (rnd.nextDouble() * (idleWait - half));
+    }
+
     /**
      * Retrieves jobs that are available, and their scheduled time has passed.
      * Returns at most batchSize jobs starting at startIndex
@@ -87,28 +193,54 @@ public class MigratorController extends AbstractController {
         return lbClient.data(findRequest, MigrationJob[].class);
     }
 
-    private LockRecord findAndLockMigrationJob()
+    /**
+     * Claims up to maxJobs available jobs, and adds them to the prefetched
+     * job queue. Returns the number of jobs claimed.
+     *
+     * In partitioned mode, only the jobs assigned to this member are claimed.
+     * If there are none, jobs of other members are stolen.
+     */
+    private int prefetchMigrationJobs(int maxJobs)
+            throws Exception {
+        if (membership == null) {
+            return prefetchMigrationJobs(maxJobs, Slice.ALL);
+        }
+        int n = prefetchMigrationJobs(maxJobs, Slice.MINE);
+        if (n == 0 && !isInterrupted()) {
+            LOGGER.debug("No jobs for {} in partition of {}, stealing", migrationConfiguration.getConfigurationName(),
+                    membership.getMemberName());
+            n = prefetchMigrationJobs(maxJobs, Slice.OTHERS);
+        }
+        return n;
+    }
+
+    private int prefetchMigrationJobs(int maxJobs, Slice slice)
             throws Exception {
-        // We retrieve a batch of migration jobs, and try to lock
-        // one of them randomly. This works, because all the jobs
+        // We retrieve a batch of migration jobs, and try to claim
+        // them in random order. This works, because all the jobs
         // we retrieve are already passed their scheduled times,
         // so it doesn't matter in what order they execute. If we
-        // can't lock any of the jobs in a given batch, we
-        // retrieve the next batch, and try there. Randomness is
-        // to prevent flooding: multiple threads starting at the
-        // same time should not try to lock resources in the same
+        // can't lock enough jobs in a given batch, we retrieve
+        // the next batch, and try there. Randomness is to prevent
+        // flooding: multiple controllers starting at the same
+        // time should not try to lock resources in the same
         // order, because one will succeed, and all others will
         // fail, and they all will try the next entity in line.
         int startIndex = 0;
+        int nClaimed = 0;
+        int nBatches = 0;
         boolean more;
+        JobType jobType = getJobTypeToProcess();
         try {
             do {
                 more = true;
-                MigrationJob[] jobs = retrieveJobs(JOB_FETCH_BATCH_SIZE, startIndex, getJobTypeToProcess());
+                MigrationJob[] jobs = retrieveJobs(JOB_FETCH_BATCH_SIZE, startIndex, jobType);
 
-                if (jobs == null || jobs.length == 0) {
-                    // didn't find the job kind we were looking for, so fetch any
-                    jobs = retrieveJobs(JOB_FETCH_BATCH_SIZE, startIndex, JobType.ANY);
+                if ((jobs == null || jobs.length == 0) && jobType != JobType.ANY) {
+                    // didn't find the job kind we were looking for, so
+                    // fetch any, and keep fetching any for the next batches
+                    jobType = JobType.ANY;
+                    jobs = retrieveJobs(JOB_FETCH_BATCH_SIZE, startIndex, jobType);
                 }
 
                 if (jobs != null && jobs.length > 0) {
@@ -116,36 +248,74 @@ public class MigratorController extends AbstractController {
                         more = false;
                     }
 
-                    List<MigrationJob> jobList = new LinkedList<>();
-                    for (MigrationJob x : jobs) {
-                        jobList.add(x);
-                    }
-
-                    do {
-                        // Pick a job at random
-                        int jobIndex = rnd.nextInt(jobList.size());
-                        MigrationJob job = jobList.get(jobIndex);
-                        // Try to lock it
-                        LockRecord lck;
-                        if ((lck = lock(job)) != null) {
-                            // Locked. Return it
-                            return lck;
-                        } else {
-                            // Can't lock it. Remove from job list
-                            jobList.remove(jobIndex);
+                    List<MigrationJob> jobList = new ArrayList<>(jobs.length);
+                    for (MigrationJob job : jobs) {
+                        if (slice == Slice.ALL || (slice == Slice.MINE) == membership.isMine(job.get_id())) {
+                            jobList.add(job);
                         }
-                    } while (!jobList.isEmpty() && !isInterrupted());
-
+                    }
+                    Collections.shuffle(jobList, rnd);
+                    for (MigrationJob job : claimer.claim(this, jobList, maxJobs - nClaimed)) {
+                        prefetchedJobs.add(new LockRecord(job, newActiveExecution(job.get_id())));
+                        nClaimed++;
+                    }
+                    // Claimed jobs may still be available until their
+                    // migrators start, so skip this whole batch
+                    startIndex += jobs.length;
+                    if (slice == Slice.MINE && ++nBatches >= MAX_PARTITION_SCAN_BATCHES) {
+                        more = false;
+                    }
                 } else {
                     more = false;
                 }
-            } while (more && !isInterrupted());
+            } while (more && nClaimed < maxJobs && !isInterrupted());
         } catch (Exception e) {
-            LOGGER.error("Exception in findAndLockMigrationJob:" + e, e);
+            LOGGER.error("Exception in prefetchMigrationJobs:" + e, e);
             throw e;
         }
-        // No jobs to process
-        return null;
+        LOGGER.debug("Prefetched {} jobs for {}", nClaimed, migrationConfiguration.getConfigurationName());
+        return nClaimed;
+    }
+
+    /**
+     * Returns a locked job from the prefetched job queue, prefetching up to
+     * freeSlots jobs if the queue is empty. Returns null if there are no
+     * jobs to process.
+     */
+    LockRecord nextMigrationJob(int freeSlots)
+            throws Exception {
+        if (prefetchedJobs.isEmpty()) {
+            prefetchMigrationJobs(Math.max(1, freeSlots));
+        }
+        return prefetchedJobs.poll();
+    }
+
+    /**
+     * Gives back the jobs that are prefetched but not started
+     */
+    void releasePrefetchedJobs() {
+        LockRecord lck;
+        while ((lck = prefetchedJobs.poll()) != null) {
+            LOGGER.debug("Releasing prefetched job {}", lck.mj.get_id());
+            claimer.unclaim(this, lck.ae.get_id());
+        }
+    }
+
+    /**
+     * Writes the membership heartbeat in partitioned mode. This is called
+     * on every pass of the controller loop, also while all threads are busy,
+     * so a member that runs long jobs isn't dropped from the ring. The
+     * membership writes at most once per heartbeat period.
+     */
+    private void heartbeat() {
+        if (membership != null) {
+            membership.refresh();
+        }
+    }
+
+    @Override
+    public void releaseJob(String id) {
+        claimer.release(this, id);
     }
 
     @Override
@@ -154,63 +324,83 @@ public class MigratorController extends AbstractController {
         // This thread never stops
         Breakpoint.checkpoint("MigratorController:start");
         ThreadMonitor monitor=controller.getThreadMonitor();
+        pool = new MigratorPool(migratorThreads, getName() + ":worker", monitor,
+                migrationConfiguration.isVirtualThreads());
+        pool.setCompletionListener(new Runnable() {
+            @Override
+            public void run() {
+                wakeup();
+            }
+        });
+        if (migrationConfiguration.isPartitioned()) {
+            membership = new Membership(lbClient, migrationConfiguration.getConfigurationName(),
+                    controller.getInstanceId());
+        }
+        int nThreads = 0;
+        long idleWait = MIN_IDLE_WAIT_MS;
+        // Reload configuration the first time all threads are busy
+        long lastConfigLoad = 0;
         while(!stopped) {
             LOGGER.debug("Controller thread for {} is alive",migrationConfiguration.getConfigurationName());
+            heartbeat();
             if(!stopped) {
-                // All active threads will notify on migratorThreads when they finish
-                synchronized (migratorThreads) {
-                    int k = 0;
-                    // Are we already running all the threads we can?
-                    // Don't include abandoned threads in this count
-                    int nThreads=monitor.getThreadCount(migratorThreads,
-                                                        ThreadMonitor.Status.alive,
-                                                        ThreadMonitor.Status.killed);
-                    LOGGER.debug("There are {} active threads for {}",nThreads,migrationConfiguration.getConfigurationName());
-                    while(!stopped&&nThreads>=migrationConfiguration.getThreadCount()) {
-                        // Wait until someone terminates (1 sec)
+                // Are we already running all the threads we can?
+                // Don't include abandoned threads in this count
+                nThreads=monitor.getThreadCount(migratorThreads,
+                                                ThreadMonitor.Status.alive,
+                                                ThreadMonitor.Status.killed);
+                LOGGER.debug("There are {} active threads for {}",nThreads,migrationConfiguration.getConfigurationName());
+                while(!stopped&&nThreads>=migrationConfiguration.getThreadCount()) {
+                    // Wait until a migrator ends. Migrators signal
+                    // when they end, the timeout is to refresh the
+                    // configuration, and to notice killed threads
+                    try {
+                        awaitWakeup(CONFIG_REFRESH_MS);
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    heartbeat();
+                    if (System.currentTimeMillis() - lastConfigLoad >= CONFIG_REFRESH_MS) {
+                        lastConfigLoad = System.currentTimeMillis();
                         try {
-                            migratorThreads.wait(1000);
-                        } catch(InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                        if (k++ % 10 == 0) {
-                            // refresh configuration every 10 iteration
-                            try {
-                                MigrationConfiguration x = reloadMigrationConfiguration();
-                                if (x == null) {
-                                    // Terminate
-                                    LOGGER.debug("Controller {} terminating",migrationConfiguration.getConfigurationName());
-                                    stopped=true;
-                                } else {
-                                    migrationConfiguration = x;
-                                }
-                            } catch (Exception e) {
-                                LOGGER.error("Cannot refresh configuration", e);
+                            MigrationConfiguration x = reloadMigrationConfiguration();
+                            if (x == null) {
+                                // Terminate
+                                LOGGER.debug("Controller {} terminating",migrationConfiguration.getConfigurationName());
+                                stopped=true;
+                            } else {
+                                migrationConfiguration = x;
                             }
+                        } catch (Exception e) {
+                            LOGGER.error("Cannot refresh configuration", e);
                         }
-                        nThreads = monitor.getThreadCount(migratorThreads,
-                                ThreadMonitor.Status.alive,
-                                ThreadMonitor.Status.killed);
-                        LOGGER.debug("There are {} active threads for {}", nThreads, migrationConfiguration.getConfigurationName());
                     }
+                    nThreads = monitor.getThreadCount(migratorThreads,
+                            ThreadMonitor.Status.alive,
+                            ThreadMonitor.Status.killed);
+                    LOGGER.debug("There are {} active threads for {}", nThreads, migrationConfiguration.getConfigurationName());
                 }
             }
             if(!stopped) {
                 LOGGER.debug("Find a migration job to process for {}",migrationConfiguration.getConfigurationName());
                 try {
                     Breakpoint.checkpoint("MigratorController:findandlock");
-                    LockRecord lockedJob = findAndLockMigrationJob();
+                    LockRecord lockedJob = nextMigrationJob(migrationConfiguration.getThreadCount() - nThreads);
                     if (lockedJob != null) {
                         LOGGER.debug("Found migration job {} for {}", lockedJob.mj.get_id(), migrationConfiguration.getConfigurationName());
+                        idleWait = MIN_IDLE_WAIT_MS;
                         Breakpoint.checkpoint("MigratorController:process");
                         Migrator m = createMigrator(lockedJob.mj, lockedJob.ae);
                         m.registerThreadMonitor(monitor);
-                        m.start();
+                        pool.submit(m);
                     } else {
                         if (migrationConfiguration.isSleepIfNoJobs()) {
-                            // No jobs are available, wait a bit (10sec-30sec), and retry
-                            LOGGER.debug("Waiting for {}", migrationConfiguration.getConfigurationName());
-                            Thread.sleep(rnd.nextInt(20000) + 10000);
+                            // No jobs are available, wait a bit, longer
+                            // every time, and retry. New jobs or a
+                            // finished migrator wake us up early
+                            long wait = jitter(idleWait);
+                            LOGGER.debug("Waiting {} msecs for {}", wait, migrationConfiguration.getConfigurationName());
+                            idleWait = nextIdleWait(idleWait, awaitWakeup(wait));
                         }
                     }
                 } catch (InterruptedException ie) {
@@ -220,7 +410,13 @@ public class MigratorController extends AbstractController {
                 }
             }
         }
+        releasePrefetchedJobs();
+        if (membership != null) {
+            membership.leave();
+        }
         migratorThreads.interrupt();
+        pool.shutdown();
+        closeLightblueClients();
         Breakpoint.checkpoint("MigratorController:end");
         LOGGER.debug("Ending controller thread for {}", migrationConfiguration.getConfigurationName());
     }
@@ -0,0 +1,54 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.Date;
+
+/**
+ * Membership record of a migrator controller, used to partition the jobs of
+ * a configuration among the hosts running it. Each controller updates its
+ * heartbeat periodically, and members whose heartbeat is too old are
+ * considered gone.
+ */
+public class MigratorMember {
+
+    public static final String ENTITY_NAME = "migratorMember";
+
+    /**
+     * configurationName:memberName
+     */
+    private String _id;
+    private String configurationName;
+    private String memberName;
+    private Date heartbeat;
+
+    public String get_id() {
+        return _id;
+    }
+
+    public void set_id(String s) {
+        _id = s;
+    }
+
+    public String getConfigurationName() {
+        return configurationName;
+    }
+
+    public void setConfigurationName(String s) {
+        configurationName = s;
+    }
+
+    public String getMemberName() {
+        return memberName;
+    }
+
+    public void setMemberName(String s) {
+        memberName = s;
+    }
+
+    public Date getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(Date d) {
+        heartbeat = d;
+    }
+}
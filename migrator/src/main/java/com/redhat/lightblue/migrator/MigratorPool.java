@@ -0,0 +1,229 @@
+package com.redhat.lightblue.migrator;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs migrators on long-lived worker threads instead of starting a new
+ * thread for every job. A worker runs one migrator at a time, and waits for
+ * the next one when it is done. Workers that stay idle for the keep-alive
+ * time terminate, and new workers are created when there are no idle ones.
+ *
+ * If virtual threads are requested and the JVM supports them, every
+ * migrator runs on a new virtual thread instead, and there is no pool.
+ *
+ * A migrator is bound to the thread running it as a thread monitor task, so
+ * the thread monitor sees the migrator the same way it saw a migrator thread:
+ * the migrator pings, is killed when it times out, and is abandoned if it
+ * doesn't stop. Killing the migrator interrupts the thread running it. The
+ * migrator is counted in the group it is created in, regardless of which
+ * thread runs it.
+ */
+public class MigratorPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigratorPool.class);
+
+    public static final long DEFAULT_KEEP_ALIVE_MS = 5l * 60l * 1000l;
+
+    private final ThreadGroup group;
+    private final String name;
+    private final ThreadMonitor monitor;
+    private final ThreadPoolExecutor executor;
+
+    // Set if migrators run on virtual threads
+    private final ThreadFactory virtualThreadFactory;
+    private final Set<Thread> virtualThreads = new HashSet<>();
+    private boolean shutdown = false;
+
+    // Migrators that are running
+    private final Set<Migrator> active = new HashSet<>();
+
+    private volatile Runnable completionListener;
+
+    public MigratorPool(ThreadGroup group, String name, ThreadMonitor monitor) {
+        this(group, name, monitor, DEFAULT_KEEP_ALIVE_MS, false);
+    }
+
+    public MigratorPool(ThreadGroup group, String name, ThreadMonitor monitor, boolean virtualThreads) {
+        this(group, name, monitor, DEFAULT_KEEP_ALIVE_MS, virtualThreads);
+    }
+
+    public MigratorPool(ThreadGroup group, String name, ThreadMonitor monitor, long keepAliveMS, boolean virtualThreads) {
+        this.group = group;
+        this.name = name;
+        this.monitor = monitor;
+        ThreadFactory vf = null;
+        if (virtualThreads) {
+            vf = getVirtualThreadFactory(name);
+            if (vf == null) {
+                LOGGER.warn("Virtual threads are not supported by this JVM, {} uses platform threads", name);
+            }
+        }
+        virtualThreadFactory = vf;
+        if (vf == null) {
+            // The controller limits the number of running migrators, so
+            // the pool only reuses idle threads
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, keepAliveMS, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>(), new WorkerFactory());
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns a factory for named virtual threads, or null if the JVM doesn't
+     * have virtual threads. Looked up reflectively so this builds for older
+     * JVMs.
+     */
+    public static ThreadFactory getVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0l);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            LOGGER.debug("No virtual threads: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Sets a listener that is called on the worker thread every time a
+     * migrator ends
+     */
+    public void setCompletionListener(Runnable listener) {
+        this.completionListener = listener;
+    }
+
+    /**
+     * Returns if migrators run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Runs the migrator on an idle worker, or on a new one
+     */
+    public void submit(final Migrator migrator) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+                synchronized (active) {
+                    active.add(migrator);
+                }
+                MigrationJob job = migrator.getMigrationJob();
+                thread.setName(threadName + ":" + (job == null ? null : job.get_id()));
+                if (monitor != null) {
+                    monitor.beginTask(migrator);
+                }
+                try {
+                    migrator.runInWorker();
+                } finally {
+                    if (monitor != null) {
+                        monitor.endThread();
+                    }
+                    synchronized (active) {
+                        active.remove(migrator);
+                    }
+                    // Don't let a kill of this migrator affect the next one
+                    Thread.interrupted();
+                    thread.setName(threadName);
+                    Runnable listener = completionListener;
+                    if (listener != null) {
+                        listener.run();
+                    }
+                }
+            }
+        };
+        if (virtualThreadFactory == null) {
+            executor.execute(task);
+        } else {
+            startVirtual(task);
+        }
+    }
+
+    private void startVirtual(final Runnable task) {
+        Thread t = virtualThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (virtualThreads) {
+                        virtualThreads.remove(Thread.currentThread());
+                    }
+                }
+            }
+        });
+        synchronized (virtualThreads) {
+            if (shutdown) {
+                throw new IllegalStateException(name + " is shut down");
+            }
+            virtualThreads.add(t);
+        }
+        t.start();
+    }
+
+    /**
+     * Returns the migrators that are running. Migrators no longer run on
+     * threads of their own, so this is the way to reach them.
+     */
+    public List<Migrator> getActiveMigrators() {
+        synchronized (active) {
+            return new ArrayList<>(active);
+        }
+    }
+
+    /**
+     * Returns the number of worker threads, idle or not
+     */
+    public int getPoolSize() {
+        if (executor == null) {
+            synchronized (virtualThreads) {
+                return virtualThreads.size();
+            }
+        } else {
+            return executor.getPoolSize();
+        }
+    }
+
+    /**
+     * Interrupts running migrators, and terminates the workers
+     */
+    public void shutdown() {
+        LOGGER.debug("Shutting down {}", name);
+        if (executor == null) {
+            synchronized (virtualThreads) {
+                shutdown = true;
+                for (Thread t : virtualThreads) {
+                    t.interrupt();
+                }
+            }
+        } else {
+            executor.shutdownNow();
+        }
+    }
+
+    private class WorkerFactory implements ThreadFactory {
+        private int n = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            return new Thread(group, r, name + "-" + (n++));
+        }
+    }
+}
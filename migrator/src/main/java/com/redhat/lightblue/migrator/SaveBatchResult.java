@@ -0,0 +1,46 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.List;
+
+/**
+ * Result of saving one batch of documents to the destination. If the batch
+ * failed, failedIdentities contains the documents that could not be saved and
+ * error contains the reason.
+ */
+public class SaveBatchResult {
+
+    private final List<Identity> savedIdentities;
+    private final List<Identity> failedIdentities;
+    private final String error;
+
+    public SaveBatchResult(List<Identity> savedIdentities, List<Identity> failedIdentities, String error) {
+        this.savedIdentities = savedIdentities;
+        this.failedIdentities = failedIdentities;
+        this.error = error;
+    }
+
+    public List<Identity> getSavedIdentities() {
+        return savedIdentities;
+    }
+
+    public List<Identity> getFailedIdentities() {
+        return failedIdentities;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isFailed() {
+        return !failedIdentities.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (isFailed()) {
+            return "failed " + failedIdentities + ": " + error;
+        } else {
+            return "saved " + savedIdentities.size();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.redhat.lightblue.migrator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A set of identities that writes identities added while the heap usage is
+ * above the spill threshold to a file in the spill directory, see
+ * IdentitySpillFile. This is used for the identities of the documents to
+ * insert and to rewrite when a spill directory is set in the migration
+ * configuration. The file is deleted when the set is closed.
+ */
+public class SpillableIdentitySet extends AbstractSet<Identity> implements Closeable {
+
+    private final Set<Identity> ids = new HashSet<>();
+    private final IdentitySpillFile spill;
+    private final double spillHeapThreshold;
+
+    public SpillableIdentitySet(File spillDirectory, double spillHeapThreshold) {
+        this.spill = new IdentitySpillFile(spillDirectory);
+        this.spillHeapThreshold = spillHeapThreshold;
+    }
+
+    @Override
+    public boolean add(Identity id) {
+        if (contains(id)) {
+            return false;
+        }
+        if (IdentitySpillFile.isHeapUsageAbove(spillHeapThreshold)) {
+            spill.add(id, null, 0);
+        } else {
+            ids.add(id);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object id) {
+        return ids.contains(id) || (id instanceof Identity && spill.find((Identity) id) >= 0);
+    }
+
+    @Override
+    public boolean remove(Object id) {
+        return ids.remove(id) || (id instanceof Identity && spill.remove((Identity) id));
+    }
+
+    @Override
+    public int size() {
+        return ids.size() + spill.size();
+    }
+
+    /**
+     * Returns the number of identities in the spill file
+     */
+    public int getSpillCount() {
+        return spill.size();
+    }
+
+    /**
+     * Removes the identities. The spill file is kept until the set is
+     * closed.
+     */
+    @Override
+    public void clear() {
+        ids.clear();
+        spill.clear();
+    }
+
+    /**
+     * Returns the identities in memory, followed by the spilled identities
+     */
+    @Override
+    public Iterator<Identity> iterator() {
+        final Iterator<Identity> heapItr = ids.iterator();
+        final Iterator<Long> spillItr = spill.records();
+        return new Iterator<Identity>() {
+            // The last identity returned by next(), if it was spilled
+            private Identity lastSpilled;
+
+            @Override
+            public boolean hasNext() {
+                return heapItr.hasNext() || spillItr.hasNext();
+            }
+
+            @Override
+            public Identity next() {
+                if (heapItr.hasNext()) {
+                    lastSpilled = null;
+                    return heapItr.next();
+                }
+                if (!spillItr.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                lastSpilled = spill.readIdentity(spillItr.next());
+                return lastSpilled;
+            }
+
+            @Override
+            public void remove() {
+                if (lastSpilled == null) {
+                    heapItr.remove();
+                } else {
+                    spill.remove(lastSpilled);
+                    lastSpilled = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Removes the identities and deletes the spill file. The set is empty
+     * after this.
+     */
+    @Override
+    public void close() throws IOException {
+        ids.clear();
+        spill.close();
+    }
+}
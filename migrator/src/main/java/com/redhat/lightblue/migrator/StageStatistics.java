@@ -0,0 +1,80 @@
+package com.redhat.lightblue.migrator;
+
+/**
+ * Throughput and queue depth counters for one stage of a migration job.
+ * Queue depth is the number of batches waiting for the stage when it is
+ * ready to take the next one, so it is only nonzero for pipelined jobs.
+ */
+public class StageStatistics {
+
+    private final String stageName;
+
+    private int batchCount;
+    private long documentCount;
+    private long busyTimeNanos;
+    private int maxQueueDepth;
+    private long totalQueueDepth;
+    private int queueDepthSamples;
+
+    public StageStatistics(String stageName) {
+        this.stageName = stageName;
+    }
+
+    public String getStageName() {
+        return stageName;
+    }
+
+    /**
+     * Records that a batch of the given size is processed in the given time
+     */
+    public synchronized void addBatch(int numDocs, long nanos) {
+        batchCount++;
+        documentCount += numDocs;
+        busyTimeNanos += nanos;
+    }
+
+    /**
+     * Records the number of batches waiting for this stage
+     */
+    public synchronized void sampleQueueDepth(int depth) {
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        totalQueueDepth += depth;
+        queueDepthSamples++;
+    }
+
+    public synchronized int getBatchCount() {
+        return batchCount;
+    }
+
+    public synchronized long getDocumentCount() {
+        return documentCount;
+    }
+
+    public synchronized long getBusyTimeMS() {
+        return busyTimeNanos / 1000000l;
+    }
+
+    /**
+     * Documents processed per second of busy time
+     */
+    public synchronized double getThroughput() {
+        return busyTimeNanos == 0 ? 0 : documentCount * 1000000000.0 / busyTimeNanos;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized double getAverageQueueDepth() {
+        return queueDepthSamples == 0 ? 0 : (double) totalQueueDepth / queueDepthSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: batches=%d docs=%d busyMS=%d docs/sec=%.1f maxQueueDepth=%d avgQueueDepth=%.1f",
+                stageName, getBatchCount(), getDocumentCount(), getBusyTimeMS(), getThroughput(),
+                getMaxQueueDepth(), getAverageQueueDepth());
+    }
+}
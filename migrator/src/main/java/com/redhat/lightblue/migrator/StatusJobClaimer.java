@@ -0,0 +1,114 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.redhat.lightblue.client.Literal;
+import com.redhat.lightblue.client.Projection;
+import com.redhat.lightblue.client.Query;
+import com.redhat.lightblue.client.Update;
+import com.redhat.lightblue.client.request.data.DataFindRequest;
+import com.redhat.lightblue.client.request.data.DataUpdateRequest;
+
+/**
+ * Claims jobs in bulk with a single conditional update: the status of the
+ * candidate jobs that are still available is set to active, and claimedBy
+ * is set to a claim token, the claiming controller followed by a nonce that
+ * is new for every claim. No locks are used.
+ *
+ * The update condition alone does not make a claim safe: the server may
+ * match a job for two claimers before either writes it, and each update
+ * returns the job as it wrote it. So the update response is not trusted.
+ * After the update, the candidates are read back with the claim token, and
+ * only the jobs stored with it are claimed. Of two racing claimers, only the
+ * one whose write was stored last finds the job.
+ *
+ * A claimed job that is never started is re-enabled by the cleanup thread
+ * based on its claimDate.
+ */
+public class StatusJobClaimer implements JobClaimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatusJobClaimer.class);
+
+    // Claim tokens of the jobs claimed and not yet released
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the owner name of the controller. Claim tokens written to
+     * claimedBy start with it.
+     */
+    public static String getOwner(MigratorController controller) {
+        return controller.getController().getInstanceId() + ":" + controller.getName();
+    }
+
+    @Override
+    public List<MigrationJob> claim(MigratorController controller, List<MigrationJob> candidates, int maxJobs)
+            throws Exception {
+        int n = Math.min(maxJobs, candidates.size());
+        if (n <= 0) {
+            return new ArrayList<>();
+        }
+        Literal[] ids = new Literal[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = Literal.value(candidates.get(i).get_id());
+        }
+        String token = getOwner(controller) + ":" + UUID.randomUUID();
+        DataUpdateRequest req = new DataUpdateRequest(MigrationJob.ENTITY_NAME, null);
+        req.where(Query.and(Query.withValues("_id", Query.in, ids),
+                Query.withValue("status", Query.eq, MigrationJob.STATE_AVAILABLE)));
+        req.updates(Update.set("status", MigrationJob.STATE_ACTIVE).
+                more("claimedBy", token).
+                more("claimDate", Literal.value(new Date())));
+        req.returns(Projection.includeField("_id"));
+        LOGGER.debug("Claiming {} jobs: {}", n, req.getBody());
+        controller.getLightblueClient().data(req);
+
+        // Keep only the jobs stored with this claim
+        DataFindRequest findRequest = new DataFindRequest(MigrationJob.ENTITY_NAME, null);
+        findRequest.where(Query.and(Query.withValues("_id", Query.in, ids),
+                Query.withValue("claimedBy", Query.eq, token)));
+        findRequest.select(Projection.includeField("*"));
+        MigrationJob[] stored = controller.getLightblueClient().data(findRequest, MigrationJob[].class);
+        List<MigrationJob> claimed = new ArrayList<>();
+        if (stored != null) {
+            for (MigrationJob job : stored) {
+                tokens.put(job.get_id(), token);
+                claimed.add(job);
+            }
+        }
+        LOGGER.debug("Claimed {} of {} jobs", claimed.size(), n);
+        return claimed;
+    }
+
+    @Override
+    public void release(MigratorController controller, String jobId) {
+        // The migrator updated the job status
+        tokens.remove(jobId);
+    }
+
+    @Override
+    public void unclaim(MigratorController controller, String jobId) {
+        String token = tokens.remove(jobId);
+        if (token == null) {
+            LOGGER.warn("Job {} was not claimed by {}", jobId, getOwner(controller));
+            return;
+        }
+        DataUpdateRequest req = new DataUpdateRequest(MigrationJob.ENTITY_NAME, null);
+        req.where(Query.and(Query.withValue("_id", Query.eq, jobId),
+                Query.withValue("status", Query.eq, MigrationJob.STATE_ACTIVE),
+                Query.withValue("claimedBy", Query.eq, token)));
+        req.updates(Update.set("status", MigrationJob.STATE_AVAILABLE));
+        try {
+            controller.getLightblueClient().data(req);
+        } catch (Exception e) {
+            LOGGER.error("Cannot unclaim job {}", jobId, e);
+        }
+    }
+}
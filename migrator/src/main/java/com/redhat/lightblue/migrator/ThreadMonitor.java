@@ -9,6 +9,16 @@ import java.util.Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Monitors threads, or tasks running on threads. A monitored thread pings the
+ * monitor periodically. If a thread doesn't ping for threadTimeout, it is
+ * killed (interrupted), and if it still doesn't stop, it is abandoned.
+ *
+ * The monitored thread is either the current thread, if it is a
+ * MonitoredThread, or the task bound to the current thread using
+ * beginTask. A task can run on any thread, including pooled or virtual
+ * threads, and the thread running it is interrupted when the task is killed.
+ */
 public class ThreadMonitor extends Thread {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ThreadMonitor.class);
@@ -25,21 +35,27 @@ public class ThreadMonitor extends Thread {
 
     private class ThreadStatus {
         final MonitoredThread thread;
+        // The thread running the monitored thread
+        final Thread runner;
+        final ThreadGroup group;
 
         long lastPing = System.currentTimeMillis();
         String lastPingMsg;
         long killTime = 0;
         Status status;
 
-        public ThreadStatus(MonitoredThread t) {
+        public ThreadStatus(MonitoredThread t, Thread runner) {
             this.thread = t;
+            this.runner = runner;
+            ThreadGroup g = t instanceof Thread ? ((Thread) t).getThreadGroup() : null;
+            this.group = g == null ? runner.getThreadGroup() : g;
             this.status = Status.alive;
         }
 
         public void kill() {
             status = Status.killed;
             killTime = System.currentTimeMillis();
-            ((Thread) thread).interrupt();
+            interruptThread();
             threadStatusChanged(thread);
         }
 
@@ -63,7 +79,7 @@ public class ThreadMonitor extends Thread {
             if (status == Status.killed && killTime > 0) {
                 if (System.currentTimeMillis() - killTime > threadTimeout) {
                     status = Status.abandoned;
-                    ((Thread) thread).interrupt();
+                    interruptThread();
                     threadStatusChanged(thread);
                     return true;
                 }
@@ -71,6 +87,13 @@ public class ThreadMonitor extends Thread {
             return false;
         }
 
+        private void interruptThread() {
+            runner.interrupt();
+            if (thread != runner && thread instanceof Thread) {
+                ((Thread) thread).interrupt();
+            }
+        }
+
         @Override
         public String toString() {
             return "Thread=" + thread + ", lastPing:" + (new Date(lastPing).toString()) + ", status=" + status
@@ -81,6 +104,9 @@ public class ThreadMonitor extends Thread {
 
     private final Map<MonitoredThread, ThreadStatus> threadMap = new HashMap<>();
 
+    // Tasks bound to threads by beginTask
+    private final ThreadLocal<MonitoredThread> currentTask = new ThreadLocal<>();
+
     public ThreadMonitor(long threadTimeout) {
         this.threadTimeout = threadTimeout;
     }
@@ -116,19 +142,38 @@ public class ThreadMonitor extends Thread {
         return threadTimeout;
     }
 
+    /**
+     * Returns the task bound to the current thread, or the current thread if
+     * it is a monitored thread
+     */
+    private MonitoredThread getCurrent() {
+        MonitoredThread task = currentTask.get();
+        if (task != null) {
+            return task;
+        }
+        Thread currentThread = Thread.currentThread();
+        return currentThread instanceof MonitoredThread ? (MonitoredThread) currentThread : null;
+    }
+
+    /**
+     * Binds the task to the current thread. Pings from the current thread
+     * are for the task until endThread is called, and killing the task
+     * interrupts the current thread.
+     */
+    public void beginTask(MonitoredThread task) {
+        currentTask.set(task);
+    }
+
     public void ping(String msg) {
         Thread currentThread = Thread.currentThread();
         LOGGER.debug("Ping from {}: {}", currentThread, msg);
-        if (currentThread instanceof MonitoredThread) {
-            MonitoredThread thread = (MonitoredThread) currentThread;
-            ThreadStatus status = threadMap.get(thread);
-            if (status == null) {
-                synchronized (this) {
-                    if (!threadMap.containsKey(thread)) {
-                        threadMap.put(thread, status = new ThreadStatus(thread));
-                    } else {
-                        status = threadMap.get(thread);
-                    }
+        MonitoredThread thread = getCurrent();
+        if (thread != null) {
+            ThreadStatus status;
+            synchronized (this) {
+                status = threadMap.get(thread);
+                if (status == null) {
+                    threadMap.put(thread, status = new ThreadStatus(thread, currentThread));
                 }
             }
             status.lastPingMsg = msg;
@@ -147,11 +192,15 @@ public class ThreadMonitor extends Thread {
         }
     }
 
+    /**
+     * Ends monitoring of the current thread, or the task bound to it
+     */
     public void endThread() {
         Thread currentThread = Thread.currentThread();
         LOGGER.debug("End thread {}", currentThread);
-        if (currentThread instanceof MonitoredThread) {
-            MonitoredThread t = (MonitoredThread) currentThread;
+        MonitoredThread t = getCurrent();
+        currentTask.remove();
+        if (t != null) {
             synchronized (this) {
                 threadMap.remove(t);
             }
@@ -160,9 +209,9 @@ public class ThreadMonitor extends Thread {
 
     private synchronized void reap(Map<MonitoredThread, ThreadStatus> threads) {
         List<MonitoredThread> dead = new ArrayList<>();
-        for (MonitoredThread t : threads.keySet()) {
-            if (!((Thread) t).isAlive()) {
-                dead.add(t);
+        for (Map.Entry<MonitoredThread, ThreadStatus> entry : threads.entrySet()) {
+            if (!entry.getValue().runner.isAlive()) {
+                dead.add(entry.getKey());
             }
         }
         for (MonitoredThread t : dead) {
@@ -180,33 +229,21 @@ public class ThreadMonitor extends Thread {
     }
 
     /**
-     * Returns threads in an array. Some elements may be null.
-     */
-    private static Thread[] getThreads(ThreadGroup g) {
-        int mul = 1;
-        do {
-            Thread[] arr = new Thread[g.activeCount() * mul + 1];
-            if (g.enumerate(arr) < arr.length) {
-                return arr;
-            }
-            mul++;
-        } while (true);
-    }
-
-    /**
-     * Return the count of threads that are in any of the statuses
+     * Return the count of threads in the group, or its subgroups, that are in
+     * any of the statuses. The group of a task that is a Thread is the group
+     * it is created in, not the group of the thread running it.
      */
     public int getThreadCount(ThreadGroup group, Status... s) {
-        Thread[] threads = getThreads(group);
+        List<ThreadStatus> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(threadMap.values());
+        }
         int count = 0;
-        for (Thread t : threads) {
-            if (t instanceof MonitoredThread) {
-                Status status = getStatus((MonitoredThread) t);
-                if (status != null) {
-                    for (Status x : s) {
-                        if (x == status) {
-                            count++;
-                        }
+        for (ThreadStatus ts : snapshot) {
+            if (ts.group != null && group.parentOf(ts.group)) {
+                for (Status x : s) {
+                    if (x == ts.status) {
+                        count++;
                     }
                 }
             }
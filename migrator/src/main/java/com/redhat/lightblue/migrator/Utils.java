@@ -2,13 +2,15 @@ package com.redhat.lightblue.migrator;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Arrays;
 import java.util.Date;
 
-import java.text.DateFormat;
-
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.FileInputStream;
@@ -21,6 +23,9 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.commons.lang.StringUtils;
 
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -37,13 +42,18 @@ import jcmp.JsonCompare;
 import com.redhat.lightblue.client.LightblueClient;
 import com.redhat.lightblue.client.LightblueClientConfiguration;
 import com.redhat.lightblue.client.PropertiesLightblueClientConfiguration;
-import com.redhat.lightblue.client.util.ClientConstants;
 import com.redhat.lightblue.client.http.LightblueHttpClient;
 
 public class Utils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Utils.class);
 
+    /**
+     * Lightblue date format. Unlike SimpleDateFormat, it is immutable and
+     * thread safe, so a single instance is shared.
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyyyMMdd'T'HH:mm:ss.SSSZ");
+
     private Utils() {
     }
 
@@ -74,9 +84,22 @@ public class Utils {
      * Build an id-doc map from a list of docs
      */
     public static Map<Identity, JsonNode> getDocumentIdMap(List<JsonNode> list, List<String> identityFields) {
-        Map<Identity, JsonNode> map = new HashMap<>();
+        return getDocumentIdMap(list, new IdentityFields(identityFields));
+    }
+
+    /**
+     * Build an id-doc map from a list of docs, using compiled identity fields
+     */
+    public static Map<Identity, JsonNode> getDocumentIdMap(List<JsonNode> list, IdentityFields identityFields) {
+        return getDocumentIdMap(list, identityFields, new HashMap<Identity, JsonNode>());
+    }
+
+    /**
+     * Adds the docs in the list to the given id-doc map, and returns the map
+     */
+    public static Map<Identity, JsonNode> getDocumentIdMap(List<JsonNode> list, IdentityFields identityFields, Map<Identity, JsonNode> map) {
         if (list != null) {
-            LOGGER.debug("Getting doc IDs for {} docs, fields={}", list.size(), identityFields);
+            LOGGER.debug("Getting doc IDs for {} docs, fields={}", list.size(), identityFields.getFields());
             for (JsonNode node : list) {
                 Identity id = new Identity(node, identityFields);
                 LOGGER.debug("ID={}", id);
@@ -86,6 +109,21 @@ public class Utils {
         return map;
     }
 
+    /**
+     * Selects how compareDocs builds the list of inconsistencies
+     */
+    public enum CompareMode {
+        /**
+         * Build the inconsistencies from the deltas of a single jiff diff
+         */
+        SINGLE_PASS,
+        /**
+         * Check if the documents are different using a jiff diff, and if
+         * they are, build the inconsistencies from a jcmp diff
+         */
+        TWO_PASS
+    }
+
     /**
      *
      * @param sourceDocument
@@ -93,14 +131,180 @@ public class Utils {
      * @return list of inconsistent paths
      */
     public static List<Inconsistency> compareDocs(JsonNode sourceDocument, JsonNode destinationDocument, List<String> exclusionPaths, boolean ignoreMSWhenComparingDates) {
+        return compareDocs(sourceDocument, destinationDocument, exclusionPaths, ignoreMSWhenComparingDates, CompareMode.SINGLE_PASS);
+    }
+
+    /**
+     * Compares the documents using the given mode. Both modes ignore the
+     * same fields and use reallyDifferent to compare values, so they find the
+     * same documents inconsistent, though the reported paths may differ for
+     * arrays.
+     *
+     * @return list of inconsistent paths
+     */
+    public static List<Inconsistency> compareDocs(JsonNode sourceDocument, JsonNode destinationDocument, List<String> exclusionPaths, boolean ignoreMSWhenComparingDates, CompareMode mode) {
+        return compareDocs(sourceDocument, destinationDocument, exclusionPaths, ignoreMSWhenComparingDates, mode, null);
+    }
+
+    /**
+     * Compares the documents using the given mode. If timestampPaths is
+     * not empty, only the values of fields matching those paths are compared
+     * as dates. Otherwise, any value that looks like a date is compared as a
+     * date.
+     *
+     * @return list of inconsistent paths
+     */
+    public static List<Inconsistency> compareDocs(JsonNode sourceDocument, JsonNode destinationDocument, List<String> exclusionPaths, boolean ignoreMSWhenComparingDates, CompareMode mode, List<String> timestampPaths) {
+        return compareDocs(sourceDocument, destinationDocument, new FieldPathMatcher(exclusionPaths), ignoreMSWhenComparingDates, mode, new FieldPathMatcher(timestampPaths));
+    }
+
+    /**
+     * Same as the other compareDocs, but with exclusion and timestamp paths
+     * compiled in advance
+     *
+     * @return list of inconsistent paths
+     */
+    public static List<Inconsistency> compareDocs(JsonNode sourceDocument, JsonNode destinationDocument, FieldPathMatcher exclusions, boolean ignoreMSWhenComparingDates, CompareMode mode, FieldPathMatcher timestampPaths) {
+        if (mode == CompareMode.TWO_PASS) {
+            return twoPassCompareDocs(sourceDocument, destinationDocument, exclusions, ignoreMSWhenComparingDates, timestampPaths);
+        } else {
+            return singlePassCompareDocs(sourceDocument, destinationDocument, exclusions, ignoreMSWhenComparingDates, timestampPaths);
+        }
+    }
+
+    private static List<Inconsistency> singlePassCompareDocs(JsonNode sourceDocument, JsonNode destinationDocument, FieldPathMatcher exclusions, boolean ignoreMSWhenComparingDates, FieldPathMatcher timestampPaths) {
+        List<Inconsistency> ret = new ArrayList<>();
+        try {
+            collectInconsistencies(ret, new ArrayList<String>(), sourceDocument, sourceDocument, destinationDocument,
+                    exclusions, ignoreMSWhenComparingDates, timestampPaths);
+        } catch (Exception e) {
+            LOGGER.error("Cannot compare docs:" + e);
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the inconsistencies between node1 and node2, which are at context
+     * in the source document, to ret. Arrays are compared as sets, so a
+     * modified array element shows up as a removed and an added element.
+     * Those are paired up in index order, and compared field by field, so
+     * the inconsistency is reported for the modified field, not the whole
+     * element.
+     */
+    private static void collectInconsistencies(List<Inconsistency> ret,
+                                               List<String> context,
+                                               JsonNode sourceDocument,
+                                               JsonNode node1,
+                                               JsonNode node2,
+                                               FieldPathMatcher exclusions,
+                                               boolean ignoreMSWhenComparingDates,
+                                               FieldPathMatcher timestampPaths) {
+        Map<String, List<JsonDelta>> removedElements = new LinkedHashMap<>();
+        Map<String, List<JsonDelta>> addedElements = new LinkedHashMap<>();
+        for (JsonDelta x : diff(context, node1, node2, exclusions)) {
+            String field = x.getField();
+            int dot = field.lastIndexOf('.');
+            if (dot > 0 && (x.getNode1() == null) != (x.getNode2() == null)
+                    && isArray(sourceDocument, field.substring(0, dot))) {
+                Map<String, List<JsonDelta>> m = x.getNode2() == null ? removedElements : addedElements;
+                List<JsonDelta> l = m.get(field.substring(0, dot));
+                if (l == null) {
+                    m.put(field.substring(0, dot), l = new ArrayList<>());
+                }
+                l.add(x);
+            } else {
+                addInconsistency(ret, field, x.getNode1(), x.getNode2(), ignoreMSWhenComparingDates, timestampPaths);
+            }
+        }
+        for (Map.Entry<String, List<JsonDelta>> entry : removedElements.entrySet()) {
+            List<JsonDelta> removed = sortByIndex(entry.getValue());
+            List<JsonDelta> added = addedElements.remove(entry.getKey());
+            added = added == null ? new ArrayList<JsonDelta>() : sortByIndex(added);
+            for (int i = 0; i < removed.size(); i++) {
+                JsonDelta r = removed.get(i);
+                if (i < added.size()) {
+                    JsonNode n1 = r.getNode1();
+                    JsonNode n2 = added.get(i).getNode2();
+                    if ((n1.isObject() && n2.isObject()) || (n1.isArray() && n2.isArray())) {
+                        List<String> elementContext = new ArrayList<>(Arrays.asList(StringUtils.split(r.getField(), '.')));
+                        collectInconsistencies(ret, elementContext, sourceDocument, n1, n2,
+                                exclusions, ignoreMSWhenComparingDates, timestampPaths);
+                    } else {
+                        addInconsistency(ret, r.getField(), n1, n2, ignoreMSWhenComparingDates, timestampPaths);
+                    }
+                } else {
+                    addInconsistency(ret, r.getField(), r.getNode1(), null, ignoreMSWhenComparingDates, timestampPaths);
+                }
+            }
+            for (int i = removed.size(); i < added.size(); i++) {
+                JsonDelta a = added.get(i);
+                addInconsistency(ret, a.getField(), null, a.getNode2(), ignoreMSWhenComparingDates, timestampPaths);
+            }
+        }
+        for (List<JsonDelta> added : addedElements.values()) {
+            for (JsonDelta a : added) {
+                addInconsistency(ret, a.getField(), null, a.getNode2(), ignoreMSWhenComparingDates, timestampPaths);
+            }
+        }
+    }
+
+    private static void addInconsistency(List<Inconsistency> ret,
+                                         String field,
+                                         JsonNode n1,
+                                         JsonNode n2,
+                                         boolean ignoreMSWhenComparingDates,
+                                         FieldPathMatcher timestampPaths) {
+        if (reallyDifferent(n1, n2, ignoreMSWhenComparingDates, isTimestamp(timestampPaths, field))) {
+            ret.add(new Inconsistency(field, n1 == null ? null : n1.toString(), n2 == null ? null : n2.toString()));
+        }
+    }
+
+    private static List<JsonDelta> sortByIndex(List<JsonDelta> list) {
+        Collections.sort(list, new Comparator<JsonDelta>() {
+            @Override
+            public int compare(JsonDelta d1, JsonDelta d2) {
+                return Integer.compare(index(d1), index(d2));
+            }
+
+            private int index(JsonDelta d) {
+                String field = d.getField();
+                return Integer.parseInt(field.substring(field.lastIndexOf('.') + 1));
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Returns if the node at the given path under root is an array
+     */
+    private static boolean isArray(JsonNode root, String path) {
+        JsonNode node = root;
+        for (String component : StringUtils.split(path, '.')) {
+            if (node == null) {
+                return false;
+            } else if (node.isArray()) {
+                try {
+                    node = node.get(Integer.parseInt(component));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                node = node.get(component);
+            }
+        }
+        return node != null && node.isArray();
+    }
+
+    private static List<Inconsistency> twoPassCompareDocs(JsonNode sourceDocument, JsonNode destinationDocument, FieldPathMatcher exclusions, boolean ignoreMSWhenComparingDates, FieldPathMatcher timestampPaths) {
         List<Inconsistency> ret = new ArrayList<>();
-        if (fastCompareDocs(sourceDocument, destinationDocument, exclusionPaths, ignoreMSWhenComparingDates)) {
+        if (fastCompareDocs(sourceDocument, destinationDocument, exclusions, ignoreMSWhenComparingDates, timestampPaths)) {
             JsonCompare cmp = new JsonCompare();
             try {
                 DocCompare.Difference<JsonNode> diff = cmp.compareNodes(sourceDocument, destinationDocument);
                 for (DocCompare.Delta<JsonNode> delta : diff.getDelta()) {
                     String field = delta.getField();
-                    if (!field.endsWith("#") && !isExcluded(exclusionPaths, field)) {
+                    if (!field.endsWith("#") && !exclusions.matches(field)) {
                         if (!(delta instanceof DocCompare.Move)) {
                             if (delta instanceof DocCompare.Addition) {
                                 ret.add(new Inconsistency(delta.getField(), null, ((DocCompare.Addition) delta).getAddedNode().toString()));
@@ -109,7 +313,7 @@ public class Utils {
                             } else {
                                 JsonNode n1 = ((DocCompare.Modification<JsonNode>) delta).getUnmodifiedNode();
                                 JsonNode n2 = ((DocCompare.Modification<JsonNode>) delta).getModifiedNode();
-                                if (reallyDifferent(n1, n2, ignoreMSWhenComparingDates)) {
+                                if (reallyDifferent(n1, n2, ignoreMSWhenComparingDates, isTimestamp(timestampPaths, field))) {
                                     ret.add(new Inconsistency(delta.getField(), n1.toString(), n2.toString()));
                                 }
                             }
@@ -130,22 +334,21 @@ public class Utils {
      * @return true if documents are different
      */
     public static boolean fastCompareDocs(JsonNode sourceDocument, JsonNode destinationDocument, List<String> exclusionPaths, boolean ignoreTimestampMSDiffs) {
+        return fastCompareDocs(sourceDocument, destinationDocument, new FieldPathMatcher(exclusionPaths), ignoreTimestampMSDiffs, null);
+    }
+
+    /**
+     * Compare two docs fast if they are the same, excluding exclusions. If
+     * timestampPaths is not empty, only those fields are compared as dates.
+     *
+     * @return true if documents are different
+     */
+    public static boolean fastCompareDocs(JsonNode sourceDocument, JsonNode destinationDocument, FieldPathMatcher exclusions, boolean ignoreTimestampMSDiffs, FieldPathMatcher timestampPaths) {
         try {
-            JsonDiff diff = new JsonDiff();
-            diff.setOption(JsonDiff.Option.ARRAY_ORDER_INSIGNIFICANT);
-            diff.setOption(JsonDiff.Option.RETURN_LEAVES_ONLY);
-            diff.setFilter(new AbstractFieldFilter() {
-                public boolean includeField(List<String> fieldName) {
-                    return !fieldName.get(fieldName.size() - 1).endsWith("#");
-                }
-            });
-            List<JsonDelta> list = diff.computeDiff(sourceDocument, destinationDocument);
+            List<JsonDelta> list = diff(new ArrayList<String>(), sourceDocument, destinationDocument, exclusions);
             for (JsonDelta x : list) {
-                String field = x.getField();
-                if (!isExcluded(exclusionPaths, field)) {
-                    if (reallyDifferent(x.getNode1(), x.getNode2(), ignoreTimestampMSDiffs)) {
-                        return true;
-                    }
+                if (reallyDifferent(x.getNode1(), x.getNode2(), ignoreTimestampMSDiffs, isTimestamp(timestampPaths, x.getField()))) {
+                    return true;
                 }
             }
         } catch (Exception e) {
@@ -154,6 +357,26 @@ public class Utils {
         return false;
     }
 
+    /**
+     * Computes the differences of the nodes at context, ignoring array
+     * element order, fields ending with '#', and excluded fields. Excluded
+     * fields are not diffed at all.
+     */
+    private static List<JsonDelta> diff(List<String> context, JsonNode node1, JsonNode node2, final FieldPathMatcher exclusions) {
+        JsonDiff diff = new JsonDiff();
+        diff.setOption(JsonDiff.Option.ARRAY_ORDER_INSIGNIFICANT);
+        diff.setOption(JsonDiff.Option.RETURN_LEAVES_ONLY);
+        diff.setFilter(new AbstractFieldFilter() {
+            public boolean includeField(List<String> fieldName) {
+                return !fieldName.get(fieldName.size() - 1).endsWith("#")
+                        && !exclusions.matches(fieldName);
+            }
+        });
+        List<JsonDelta> list = new ArrayList<>();
+        diff.computeDiff(list, context, node1, node2);
+        return list;
+    }
+
     /**
      * This stupidity is required because data types of the source and dest
      * might be different, but they might have the same value. Like, a number
@@ -163,6 +386,14 @@ public class Utils {
      * equivalence. For dates, normalize by TZ and check.
      */
     public static boolean reallyDifferent(JsonNode source, JsonNode dest, boolean ignoreTimestampMSDiffs) {
+        return reallyDifferent(source, dest, ignoreTimestampMSDiffs, true);
+    }
+
+    /**
+     * Same as reallyDifferent(source, dest, ignoreTimestampMSDiffs), but
+     * values are compared as dates only if checkDates is true
+     */
+    public static boolean reallyDifferent(JsonNode source, JsonNode dest, boolean ignoreTimestampMSDiffs, boolean checkDates) {
         if (source == null || source instanceof NullNode) {
             if (dest == null || dest instanceof NullNode) {
                 return false;
@@ -177,20 +408,18 @@ public class Utils {
             if (s1.equals(s2)) {
                 return false;
             }
+            if (!checkDates) {
+                return true;
+            }
 
             // They are different strings
             // Do they look like dates?
-            Date d1;
-            Date d2;
-            DateFormat fmt = ClientConstants.getDateFormat();
-            try {
-                d1 = fmt.parse(s1);
-            } catch (Exception e) {
+            Date d1 = parseDate(s1);
+            if (d1 == null) {
                 return true;
             }
-            try {
-                d2 = fmt.parse(s2);
-            } catch (Exception e) {
+            Date d2 = parseDate(s2);
+            if (d2 == null) {
                 return true;
             }
 
@@ -205,34 +434,35 @@ public class Utils {
         }
     }
 
-    private static boolean isExcluded(List<String> exclusions, String path) {
-        if (exclusions != null) {
-            if (!exclusions.contains(path)) {
-                for (String x : exclusions) {
-                    if (matches(path, x)) {
-                        return true;
-                    }
-                }
-            } else {
-                return true;
+    /**
+     * Parses a date in lightblue date format (yyyyMMdd'T'HH:mm:ss.SSSZ).
+     * Returns null if s is not a date. Strings that can't be dates are
+     * rejected by looking at their shape, without calling the parser.
+     */
+    public static Date parseDate(String s) {
+        // 20071203T10:15:30.000-0400
+        if (s.length() < 23 || s.length() > 29
+                || s.charAt(8) != 'T' || s.charAt(11) != ':' || s.charAt(14) != ':' || s.charAt(17) != '.') {
+            return null;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return null;
             }
         }
-        return false;
+        try {
+            return new Date(DATE_FORMAT.parseMillis(s));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
-    private static boolean matches(String path, String pattern) {
-        String[] patternComponents = pattern.split("\\.");
-        String[] pathComponents = path.split("\\.");
-        if (patternComponents.length <= pathComponents.length) {
-            for (int i = 0; i < patternComponents.length; i++) {
-                if (!(pathComponents[i].equals(patternComponents[i])
-                        || "*".equals(patternComponents[i]))) {
-                    return false;
-                }
-            }
-            return true;
-        }
-        return false;
+    /**
+     * Returns if the field should be compared as a date. If there are no
+     * timestamp paths, any field can be a date.
+     */
+    private static boolean isTimestamp(FieldPathMatcher timestampPaths, String field) {
+        return timestampPaths == null || timestampPaths.isEmpty() || timestampPaths.matches(field);
     }
 
 }
@@ -0,0 +1,41 @@
+package com.redhat.lightblue.migrator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+    @Test
+    public void growsWhenFastTest() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(64, 8, 100, 1000);
+        b.success(64, 10);
+        Assert.assertEquals(72, b.getBatchSize());
+        // Partial batches don't grow the size
+        b.success(10, 10);
+        Assert.assertEquals(72, b.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            b.success(b.getBatchSize(), 10);
+        }
+        Assert.assertEquals(100, b.getBatchSize());
+    }
+
+    @Test
+    public void shrinksWhenSlowOrFailedTest() {
+        AdaptiveBatchSize b = new AdaptiveBatchSize(64, 8, 512, 1000);
+        b.success(64, 2000);
+        Assert.assertEquals(32, b.getBatchSize());
+        b.failure();
+        Assert.assertEquals(16, b.getBatchSize());
+        b.failure();
+        b.failure();
+        Assert.assertEquals(8, b.getBatchSize());
+    }
+
+    @Test
+    public void fixedTest() {
+        AdaptiveBatchSize b = AdaptiveBatchSize.fixed(64);
+        b.success(64, 10);
+        b.failure();
+        Assert.assertEquals(64, b.getBatchSize());
+    }
+}
@@ -1,14 +1,18 @@
 package com.redhat.lightblue.migrator;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.util.ClientConstants;
 
 public class CompareTest {
 
@@ -70,4 +74,145 @@ public class CompareTest {
         Assert.assertEquals(1, list.size());
     }
 
+
+    private static ObjectNode json(String s) throws Exception {
+        return (ObjectNode) new ObjectMapper().readTree(s.replace('\'', '"'));
+    }
+
+    private static long fp(ObjectNode doc, boolean ignoreMS, String... exclusions) {
+        return DocumentFingerprint.of(doc, Arrays.asList(exclusions), ignoreMS);
+    }
+
+    @Test
+    public void testFingerprintSameDocs() throws Exception {
+        ObjectNode n1 = json("{'a':1,'b':'x','arr':[{'x':1},{'x':2}],'c':null,'a#':2}");
+        ObjectNode n2 = json("{'arr':[{'x':2},{'x':1}],'b':'x','a':'1'}");
+        Assert.assertEquals(fp(n1, false), fp(n2, false));
+        Assert.assertTrue(Utils.compareDocs(n1, n2, new ArrayList<String>(), false).isEmpty());
+    }
+
+    @Test
+    public void testFingerprintDifferentDocs() throws Exception {
+        Assert.assertNotEquals(fp(json("{'a':1}"), false), fp(json("{'a':2}"), false));
+        Assert.assertNotEquals(fp(json("{'a':1}"), false), fp(json("{'b':1}"), false));
+        Assert.assertNotEquals(fp(json("{'a':[1,2]}"), false), fp(json("{'a':[1,2,2]}"), false));
+        Assert.assertNotEquals(fp(json("{'a':{'b':1,'c':2}}"), false), fp(json("{'a':{'b':2,'c':1}}"), false));
+    }
+
+    @Test
+    public void testFingerprintExclusions() throws Exception {
+        ObjectNode n1 = json("{'a':1,'b':{'x':1,'y':1},'arr':[{'x':1,'y':1}]}");
+        ObjectNode n2 = json("{'a':1,'b':{'x':1,'y':2},'arr':[{'x':1,'y':2}]}");
+        Assert.assertNotEquals(fp(n1, false), fp(n2, false));
+        Assert.assertEquals(fp(n1, false, "b.y", "arr.*.y"), fp(n2, false, "b.y", "arr.*.y"));
+        Assert.assertEquals(fp(n1, false, "b", "arr"), fp(n2, false, "b", "arr"));
+    }
+
+    @Test
+    public void testFingerprintDates() throws Exception {
+        ObjectNode n1 = json("{'t':'20071203T10:15:30.000-0400'}");
+        ObjectNode n2 = json("{'t':'20071203T10:15:30.015-0400'}");
+        ObjectNode n3 = json("{'t':'20071203T14:15:30.000-0000'}");
+        Assert.assertNotEquals(fp(n1, false), fp(n2, false));
+        Assert.assertEquals(fp(n1, true), fp(n2, true));
+        Assert.assertEquals(fp(n1, false), fp(n3, false));
+    }
+
+    private static List<String> fields(List<Inconsistency> list) {
+        List<String> ret = new ArrayList<>();
+        for (Inconsistency x : list) {
+            ret.add(x.getField());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Test
+    public void testCompareModesAgree() throws Exception {
+        String[][] docs = {
+            {"{'a':1,'b':'x'}", "{'a':'1','b':'y'}"},
+            {"{'arr':[{'x':'x','y':'y'},{'x':1}]}", "{'arr':[{'x':1},{'x':'y','y':'y'}]}"},
+            {"{'arr':[{'x':1,'n':[1,2]}]}", "{'arr':[{'x':1,'n':[1,3]}]}"},
+            {"{'a':{'b':1,'c#':2},'t':'20071203T10:15:30.000-0400'}", "{'a':{'b':1},'t':'20071203T14:15:30.000-0000','d':1}"},
+            {"{'arr':[1,2,3]}", "{'arr':[1,2]}"}
+        };
+        for (String[] pair : docs) {
+            ObjectNode n1 = json(pair[0]);
+            ObjectNode n2 = json(pair[1]);
+            List<Inconsistency> single = Utils.compareDocs(n1, n2, new ArrayList<String>(), false, Utils.CompareMode.SINGLE_PASS);
+            List<Inconsistency> two = Utils.compareDocs(n1, n2, new ArrayList<String>(), false, Utils.CompareMode.TWO_PASS);
+            // Paths under arrays may be reported differently, but both
+            // must agree if the docs are consistent
+            Assert.assertEquals(pair[0], two.isEmpty(), single.isEmpty());
+        }
+        Assert.assertEquals(Arrays.asList("b"), fields(Utils.compareDocs(json(docs[0][0]), json(docs[0][1]),
+                new ArrayList<String>(), false, Utils.CompareMode.SINGLE_PASS)));
+        Assert.assertEquals(Arrays.asList("arr.0.n.1"), fields(Utils.compareDocs(json(docs[2][0]), json(docs[2][1]),
+                new ArrayList<String>(), false, Utils.CompareMode.SINGLE_PASS)));
+        Assert.assertEquals(Arrays.asList("d"), fields(Utils.compareDocs(json(docs[3][0]), json(docs[3][1]),
+                new ArrayList<String>(), false, Utils.CompareMode.SINGLE_PASS)));
+    }
+
+    @Test
+    public void testSinglePassExclusions() throws Exception {
+        ObjectNode n1 = json("{'a':1,'arr':[{'x':1,'y':1}]}");
+        ObjectNode n2 = json("{'a':2,'arr':[{'x':1,'y':2}]}");
+        List<Inconsistency> list = Utils.compareDocs(n1, n2, Arrays.asList("arr.*.y"), false, Utils.CompareMode.SINGLE_PASS);
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals("a", list.get(0).getField());
+        Assert.assertEquals("1", list.get(0).getSourceValue());
+        Assert.assertEquals("2", list.get(0).getDestValue());
+    }
+
+    @Test
+    public void testFieldPathMatcher() throws Exception {
+        FieldPathMatcher m = new FieldPathMatcher(Arrays.asList("a.b", "arr.*.y", "*.z"));
+        Assert.assertTrue(m.matches("a.b"));
+        Assert.assertTrue(m.matches("a.b.c"));
+        Assert.assertTrue(m.matches("arr.3.y"));
+        Assert.assertTrue(m.matches(Arrays.asList("arr", "0", "y", "w")));
+        Assert.assertTrue(m.matches("q.z"));
+        Assert.assertFalse(m.matches("a"));
+        Assert.assertFalse(m.matches("a.c"));
+        Assert.assertFalse(m.matches("arr.3.x"));
+        Assert.assertFalse(m.matches("q.z1"));
+        Assert.assertTrue(new FieldPathMatcher(null).isEmpty());
+        Assert.assertFalse(new FieldPathMatcher(null).matches("a"));
+    }
+
+    @Test
+    public void testExclusionsInUnorderedArray() throws Exception {
+        // Elements differ only in the excluded field, and are in different order
+        ObjectNode n1 = json("{'arr':[{'x':1,'y':1},{'x':2,'y':5}]}");
+        ObjectNode n2 = json("{'arr':[{'x':2,'y':9},{'x':1,'y':3}]}");
+        for (Utils.CompareMode mode : Utils.CompareMode.values()) {
+            Assert.assertTrue(Utils.compareDocs(n1, n2, Arrays.asList("arr.*.y"), false, mode).isEmpty());
+        }
+        Assert.assertEquals(Arrays.asList("arr.1.x"), fields(Utils.compareDocs(n1, json("{'arr':[{'x':1,'y':9},{'x':3,'y':3}]}"),
+                Arrays.asList("arr.*.y"), false, Utils.CompareMode.SINGLE_PASS)));
+    }
+
+    @Test
+    public void testParseDate() throws Exception {
+        Assert.assertEquals(ClientConstants.getDateFormat().parse("20071203T10:15:30.015-0400"),
+                Utils.parseDate("20071203T10:15:30.015-0400"));
+        Assert.assertNull(Utils.parseDate("x"));
+        Assert.assertNull(Utils.parseDate("some text that is long enough"));
+        Assert.assertNull(Utils.parseDate("20071203T10:15:30.015-04xx"));
+    }
+
+    @Test
+    public void testTimestampPaths() throws Exception {
+        ObjectNode n1 = json("{'t':'20071203T10:15:30.000-0400','s':'20071203T10:15:30.000-0400'}");
+        ObjectNode n2 = json("{'t':'20071203T14:15:30.000-0000','s':'20071203T14:15:30.000-0000'}");
+        Assert.assertTrue(Utils.compareDocs(n1, n2, new ArrayList<String>(), false).isEmpty());
+        // Only t is a date, s is compared as a string
+        List<Inconsistency> list = Utils.compareDocs(n1, n2, new ArrayList<String>(), false,
+                Utils.CompareMode.SINGLE_PASS, Arrays.asList("t"));
+        Assert.assertEquals(Arrays.asList("s"), fields(list));
+        Assert.assertEquals(fields(list), fields(Utils.compareDocs(n1, n2, new ArrayList<String>(), false,
+                Utils.CompareMode.TWO_PASS, Arrays.asList("t"))));
+        Assert.assertNotEquals(DocumentFingerprint.of(n1, null, false, Arrays.asList("t")),
+                DocumentFingerprint.of(n2, null, false, Arrays.asList("t")));
+    }
 }
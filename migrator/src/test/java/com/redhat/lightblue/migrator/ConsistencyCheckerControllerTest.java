@@ -0,0 +1,239 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.util.ClientConstants;
+
+public class ConsistencyCheckerControllerTest {
+
+    private static final long HOUR = 3600000l;
+
+    private static ConsistencyCheckerController controller(final LightblueClient cli, MigrationConfiguration cfg) {
+        return controller(cli, cfg, null);
+    }
+
+    /**
+     * Returns a controller whose clock says now, or the real time if now is
+     * null
+     */
+    private static ConsistencyCheckerController controller(final LightblueClient cli, MigrationConfiguration cfg, final Date now) {
+        MainConfiguration mainCfg = new MainConfiguration() {
+            @Override
+            public LightblueClient getLightblueClient() {
+                return cli;
+            }
+        };
+        mainCfg.setName("test");
+        return new ConsistencyCheckerController(new Controller(mainCfg), cfg) {
+            @Override
+            protected Date getNow() {
+                return now == null ? super.getNow() : now;
+            }
+        };
+    }
+
+    /**
+     * Returns a migrator that counts docsPerHour source documents in every
+     * hour
+     */
+    private static Migrator countingMigrator(final int docsPerHour) {
+        return new InMemoryMigrator(InMemoryMigrator.config()) {
+            @Override
+            public String createRangeQuery(Date startDate, Date endDate) {
+                return startDate.getTime() + "," + endDate.getTime();
+            }
+
+            @Override
+            public int countSourceDocuments(String query) {
+                String[] range = query.split(",");
+                return (int) ((Long.parseLong(range[1]) - Long.parseLong(range[0])) / HOUR * docsPerHour);
+            }
+        };
+    }
+
+    private static String range(int i) {
+        return String.format("2016%04d", i);
+    }
+
+    private static MigrationJob job(int i) {
+        MigrationJob mj = new MigrationJob();
+        mj.setConfigurationName("test");
+        MigrationJob.ConsistencyChecker cc = new MigrationJob.ConsistencyChecker();
+        cc.setConfigurationName("test");
+        cc.setJobRangeBegin(range(i));
+        cc.setJobRangeEnd(range(i + 1));
+        mj.setConsistencyChecker(cc);
+        return mj;
+    }
+
+    /**
+     * Returns the documents of an insert request. A single document is
+     * sent without an array.
+     */
+    private static List<JsonNode> insertedDocs(ScriptedLightblueClient.Request req) {
+        List<JsonNode> ret = new ArrayList<>();
+        JsonNode data = req.body.get("data");
+        if (data.isArray()) {
+            for (JsonNode doc : data) {
+                ret.add(doc);
+            }
+        } else {
+            ret.add(data);
+        }
+        return ret;
+    }
+
+    @Test
+    public void batchCreateTest() throws Exception {
+        // Jobs for ranges 10 and 20 are already there
+        ScriptedLightblueClient cli = new ScriptedLightblueClient() {
+            @Override
+            protected List<JsonNode> respond(Request req) {
+                List<JsonNode> ret = new ArrayList<>();
+                if (req.entity.equals("migrationJob") && req.operation.equals("find")) {
+                    for (int i : new int[]{10, 20}) {
+                        ObjectNode job = JsonNodeFactory.instance.objectNode();
+                        ObjectNode cc = job.putObject("consistencyChecker");
+                        cc.put("configurationName", "test");
+                        cc.put("jobRangeBegin", range(i));
+                        cc.put("jobRangeEnd", range(i + 1));
+                        ret.add(job);
+                    }
+                }
+                return ret;
+            }
+        };
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setJobInsertBatchSize(40);
+        ConsistencyCheckerController ccc = controller(cli, cfg);
+
+        List<MigrationJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            jobs.add(job(i));
+        }
+        // Range 30 is repeated
+        jobs.add(job(30));
+        ccc.batchCreate(jobs);
+
+        // Existing ranges are looked up with a single query
+        Assert.assertEquals(1, cli.getRequests("migrationJob", "find").size());
+        List<ScriptedLightblueClient.Request> inserts = cli.getRequests("migrationJob", "insert");
+        // 98 jobs in batches of 40
+        Assert.assertEquals(3, inserts.size());
+        Set<String> inserted = new HashSet<>();
+        int n = 0;
+        for (ScriptedLightblueClient.Request req : inserts) {
+            List<JsonNode> data = insertedDocs(req);
+            Assert.assertTrue(data.size() <= 40);
+            for (JsonNode doc : data) {
+                Assert.assertTrue(inserted.add(doc.get("consistencyChecker").get("jobRangeBegin").asText()));
+                n++;
+            }
+        }
+        Assert.assertEquals(98, n);
+        Assert.assertFalse(inserted.contains(range(10)));
+        Assert.assertFalse(inserted.contains(range(20)));
+        Assert.assertTrue(inserted.contains(range(30)));
+    }
+
+    @Test
+    public void batchCreateDefaultBatchSizeTest() throws Exception {
+        ScriptedLightblueClient cli = new ScriptedLightblueClient();
+        ConsistencyCheckerController ccc = controller(cli, InMemoryMigrator.config());
+        List<MigrationJob> jobs = new ArrayList<>();
+        for (int i = 0; i < ConsistencyCheckerController.JOB_INSERT_BATCH_SIZE + 1; i++) {
+            jobs.add(job(i));
+        }
+        ccc.batchCreate(jobs);
+        List<ScriptedLightblueClient.Request> inserts = cli.getRequests("migrationJob", "insert");
+        Assert.assertEquals(2, inserts.size());
+        Assert.assertEquals(ConsistencyCheckerController.JOB_INSERT_BATCH_SIZE, insertedDocs(inserts.get(0)).size());
+        Assert.assertEquals(1, insertedDocs(inserts.get(1)).size());
+    }
+
+    @Test
+    public void catchUpMaxSpanTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setCatchUpMaxSpan("8 hours");
+        Date start = new Date(0);
+        ConsistencyCheckerController ccc = controller(new ScriptedLightblueClient(), cfg, new Date(100 * HOUR));
+        // Doubles 1, 2, 4, 8 hours, and stops before 16
+        Assert.assertEquals(8 * HOUR, ccc.getCatchUpEndDate(countingMigrator(10), start, HOUR).getTime());
+    }
+
+    @Test
+    public void catchUpTargetDocumentsTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setCatchUpTargetDocuments(45);
+        Date start = new Date(0);
+        ConsistencyCheckerController ccc = controller(new ScriptedLightblueClient(), cfg, new Date(100 * HOUR));
+        // 4 hours have 40 documents, 8 hours would have 80
+        Assert.assertEquals(4 * HOUR, ccc.getCatchUpEndDate(countingMigrator(10), start, HOUR).getTime());
+        // If documents cannot be counted, one period
+        Assert.assertEquals(HOUR, ccc.getCatchUpEndDate(new InMemoryMigrator(InMemoryMigrator.config()), start, HOUR).getTime());
+    }
+
+    @Test
+    public void catchUpStopsAtNowTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setCatchUpMaxSpan("64 hours");
+        cfg.setCatchUpTargetDocuments(1000);
+        // The period ending at 8 hours is not over yet
+        ConsistencyCheckerController ccc = controller(new ScriptedLightblueClient(), cfg, new Date(8 * HOUR + HOUR / 2));
+        Assert.assertEquals(4 * HOUR, ccc.getCatchUpEndDate(countingMigrator(10), new Date(0), HOUR).getTime());
+        // Nothing elapsed
+        Assert.assertNull(ccc.getCatchUpEndDate(countingMigrator(10), new Date(8 * HOUR), HOUR));
+    }
+
+    @Test
+    public void timestampSavedAfterEachChunkTest() throws Exception {
+        ScriptedLightblueClient cli = new ScriptedLightblueClient();
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.set_id("cfg");
+        cfg.setMigratorClass(MigratorControllerTest.EmptyMigrator.class.getName());
+        long period = 60000l;
+        int chunk = ConsistencyCheckerController.JOB_CREATION_CHUNK_SIZE;
+        // Periods before now - period are over
+        int nJobs = 2 * chunk + 10;
+        Date start = new Date(0);
+        ConsistencyCheckerController ccc = controller(cli, cfg, new Date((nJobs + 1) * period + 1));
+        ActiveExecution ae = new ActiveExecution();
+        ae.set_id("ae");
+        ccc.createJobsUntilNow(start, period, ae);
+
+        // Each chunk is inserted, then timestampInitialValue is moved to
+        // its end
+        List<Date> saved = new ArrayList<>();
+        List<Integer> insertedBefore = new ArrayList<>();
+        int inserted = 0;
+        for (ScriptedLightblueClient.Request req : cli.requests) {
+            if (req.entity.equals("migrationJob") && req.operation.equals("insert")) {
+                inserted += insertedDocs(req).size();
+            } else if (req.entity.equals("migrationConfiguration") && req.operation.equals("update")) {
+                String value = req.body.get("update").get("$set").get("timestampInitialValue").asText();
+                saved.add(ClientConstants.getDateFormat().parse(value));
+                insertedBefore.add(inserted);
+            }
+        }
+        Assert.assertEquals(nJobs, inserted);
+        Assert.assertEquals(3, saved.size());
+        Assert.assertEquals(chunk, (int) insertedBefore.get(0));
+        Assert.assertEquals(chunk * period, saved.get(0).getTime());
+        Assert.assertEquals(2 * chunk, (int) insertedBefore.get(1));
+        Assert.assertEquals(2 * chunk * period, saved.get(1).getTime());
+        Assert.assertEquals(nJobs, (int) insertedBefore.get(2));
+        Assert.assertEquals(nJobs * period, saved.get(2).getTime());
+        Assert.assertEquals(nJobs * period, cfg.getTimestampInitialValue().getTime());
+    }
+}
@@ -0,0 +1,52 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private static final int N = 10000;
+
+    @Test
+    public void balanceTest() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < N; i++) {
+            String owner = ring.getOwner("job-" + i);
+            Integer n = counts.get(owner);
+            counts.put(owner, n == null ? 1 : n + 1);
+        }
+        Assert.assertEquals(4, counts.size());
+        for (Integer n : counts.values()) {
+            // Each member should get roughly a quarter
+            Assert.assertTrue(n.toString(), n > N / 8 && n < N / 2);
+        }
+    }
+
+    @Test
+    public void joinMovesOnlyNewMemberKeysTest() {
+        ConsistentHashRing ring1 = new ConsistentHashRing(Arrays.asList("a", "b", "c"));
+        ConsistentHashRing ring2 = new ConsistentHashRing(Arrays.asList("c", "a", "b", "d"));
+        int moved = 0;
+        for (int i = 0; i < N; i++) {
+            String key = "job-" + i;
+            String o1 = ring1.getOwner(key);
+            String o2 = ring2.getOwner(key);
+            if (!o1.equals(o2)) {
+                Assert.assertEquals("d", o2);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 0 && moved < N / 2);
+    }
+
+    @Test
+    public void emptyTest() {
+        Assert.assertNull(new ConsistentHashRing(Arrays.<String>asList()).getOwner("x"));
+        Assert.assertEquals("a", new ConsistentHashRing(Arrays.asList("a")).getOwner("x"));
+    }
+}
@@ -0,0 +1,177 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.response.LightblueResponse;
+
+public class DefaultMigratorTest {
+
+    private static class LocalMigrator extends DefaultMigrator {
+        final MigrationConfiguration cfg;
+        final FakeLightblueClient cli;
+        final MigrationJobExecution execution = new MigrationJobExecution();
+
+        public LocalMigrator(MigrationConfiguration cfg, FakeLightblueClient cli) {
+            super(new ThreadGroup("test"));
+            this.cfg = cfg;
+            this.cli = cli;
+        }
+
+        @Override
+        public MigrationConfiguration getMigrationConfiguration() {
+            return cfg;
+        }
+
+        @Override
+        public LightblueClient getLightblueClient(String configPath) {
+            return cli;
+        }
+
+        @Override
+        public MigrationJobExecution getExecution() {
+            return execution;
+        }
+    }
+
+    private List<Identity> ids(int n) {
+        List<Identity> ids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids.add(new Identity(new Object[]{"id" + i}));
+        }
+        return ids;
+    }
+
+    @Test
+    public void sequentialDestinationFetchTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(0));
+        List<JsonNode> docs = m.getDestinationDocuments(ids(200));
+        Assert.assertEquals(200, docs.size());
+        // 64+64+64+8
+        Assert.assertEquals(4, m.cli.requests.size());
+        Assert.assertEquals(1, m.cli.maxInFlight.get());
+    }
+
+    @Test
+    public void concurrentDestinationFetchTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setDestinationFetchThreads(3);
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(50));
+        try {
+            List<JsonNode> docs = m.getDestinationDocuments(ids(64 * 10));
+            Assert.assertEquals(640, docs.size());
+            Assert.assertEquals(10, m.cli.requests.size());
+            Assert.assertTrue(m.cli.maxInFlight.get() > 1);
+            Assert.assertTrue(m.cli.maxInFlight.get() <= 3);
+        } finally {
+            m.cleanupMigrator();
+        }
+    }
+
+    private List<JsonNode> docs(int n) {
+        List<JsonNode> docs = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            docs.add(InMemoryMigrator.doc("id" + i, "v"));
+        }
+        return docs;
+    }
+
+    @Test
+    public void concurrentSaveTest() throws Exception {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setSaveThreads(3);
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(50));
+        try {
+            List<LightblueResponse> responses = m.save(docs(64 * 10));
+            Assert.assertEquals(10, responses.size());
+            Assert.assertEquals(640, Migrator.getModifiedCount(responses));
+            Assert.assertEquals(10, m.cli.requests.size());
+            Assert.assertTrue(m.cli.maxInFlight.get() > 1);
+            Assert.assertTrue(m.cli.maxInFlight.get() <= 3);
+        } finally {
+            m.cleanupMigrator();
+        }
+    }
+
+    @Test
+    public void saveFailureIsolationTest() throws Exception {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(0));
+        List<JsonNode> docs = docs(64);
+        docs.set(10, InMemoryMigrator.doc("id10", "bad"));
+        try {
+            m.save(docs);
+            Assert.fail();
+        } catch (LightblueException e) {
+            Assert.assertTrue(e.getMessage().contains("id10"));
+        }
+        // 64 fails, then halves down to the bad doc: 1+2*6 requests
+        Assert.assertEquals(13, m.cli.requests.size());
+        Assert.assertEquals(63, m.execution.getSavedDocumentCount());
+        Assert.assertEquals(1, m.execution.getFailedDocumentCount());
+        List<Identity> failed = m.execution.getFailedIdentities();
+        Assert.assertEquals(1, failed.size());
+        Assert.assertEquals(new Identity(new Object[]{"id10"}), failed.get(0));
+    }
+
+    @Test
+    public void saveFailureUsesMigratorIdentityFieldsTest() throws Exception {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(0)) {
+            @Override
+            public List<String> getIdentityFields() {
+                return Arrays.asList("value");
+            }
+        };
+        List<JsonNode> docs = docs(4);
+        docs.set(1, InMemoryMigrator.doc("id1", "bad"));
+        try {
+            m.save(docs);
+            Assert.fail();
+        } catch (LightblueException e) {
+        }
+        Assert.assertEquals(Arrays.asList(new Identity(new Object[]{"bad"})), m.execution.getFailedIdentities());
+    }
+
+    @Test
+    public void failedIdentitiesAreCappedTest() {
+        MigrationJobExecution execution = new MigrationJobExecution();
+        List<Identity> ids = ids(MigrationJobExecution.MAX_FAILED_IDENTITIES + 10);
+        execution.addSaveBatchResult(new SaveBatchResult(ids.subList(0, 5), ids, "error"));
+        execution.addSaveBatchResult(new SaveBatchResult(ids.subList(0, 5), ids.subList(0, 1), "error"));
+        Assert.assertEquals(10, execution.getSavedDocumentCount());
+        Assert.assertEquals(ids.size() + 1, execution.getFailedDocumentCount());
+        Assert.assertEquals(MigrationJobExecution.MAX_FAILED_IDENTITIES, execution.getFailedIdentities().size());
+    }
+
+    @Test
+    public void afterQueryTest() {
+        Assert.assertEquals("{\"field\":\"a\",\"op\":\">\",\"rvalue\":\"x\"}",
+                DefaultMigrator.createAfterQuery(Arrays.asList("a"), new Identity(new Object[]{"x"})).toString());
+        // a>x or (a=x and b>1)
+        String q = DefaultMigrator.createAfterQuery(Arrays.asList("a", "b"), new Identity(new Object[]{"x", "1"})).toString();
+        Assert.assertTrue(q, q.startsWith("{\"$or\":[{\"field\":\"a\",\"op\":\">\""));
+        Assert.assertTrue(q, q.contains("{\"$and\":[{\"field\":\"a\",\"op\":\"=\",\"rvalue\":\"x\"},{\"field\":\"b\",\"op\":\">\",\"rvalue\":\"1\"}]}"));
+    }
+
+    @Test
+    public void leanWriteTest() throws Exception {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        LocalMigrator m = new LocalMigrator(cfg, new FakeLightblueClient(0));
+        m.save(docs(1));
+        Assert.assertEquals("_id", m.cli.requests.get(0).get("projection").get("field").asText());
+
+        cfg.setLeanWrite(false);
+        m.save(docs(1));
+        Assert.assertEquals("*", m.cli.requests.get(1).get("projection").get("field").asText());
+    }
+}
@@ -0,0 +1,92 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import com.redhat.lightblue.client.LightblueClientConfiguration;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.http.LightblueHttpClient;
+import com.redhat.lightblue.client.request.LightblueDataRequest;
+import com.redhat.lightblue.client.response.DefaultLightblueDataResponse;
+
+/**
+ * A lightblue client that doesn't talk to a server. Find requests return a
+ * document for each "rvalue" in the request query, that is, every document
+ * asked for by identity exists. Saves succeed unless one of the saved
+ * documents has value "bad".
+ */
+public class FakeLightblueClient extends LightblueHttpClient {
+
+    public final List<JsonNode> requests = new ArrayList<>();
+    public final AtomicInteger inFlight = new AtomicInteger();
+    public final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final long delay;
+
+    public FakeLightblueClient(long delay) {
+        super(new LightblueClientConfiguration());
+        this.delay = delay;
+    }
+
+    @Override
+    public DefaultLightblueDataResponse data(LightblueDataRequest req) throws LightblueException {
+        call(req);
+        JsonNode data = req.getBodyJson().get("data");
+        if (!data.isArray()) {
+            data = JsonNodeFactory.instance.arrayNode().add(data);
+        }
+        for (JsonNode doc : data) {
+            if ("bad".equals(doc.get("value").asText())) {
+                // The response constructor throws LightblueResponseException
+                return new DefaultLightblueDataResponse("{\"status\":\"ERROR\",\"errors\":[{\"errorCode\":\"bad\",\"msg\":\"bad doc\"}]}");
+            }
+        }
+        return new DefaultLightblueDataResponse("{\"status\":\"COMPLETE\",\"modifiedCount\":" + data.size() + "}");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T data(LightblueDataRequest req, Class<T> type) throws LightblueException {
+        call(req);
+        List<JsonNode> ret = new ArrayList<>();
+        collectValues(req.getBodyJson().get("query"), ret);
+        List<JsonNode> docs = new ArrayList<>();
+        for (JsonNode v : ret) {
+            docs.add(InMemoryMigrator.doc(v.asText(), "v"));
+        }
+        return (T) docs.toArray(new JsonNode[docs.size()]);
+    }
+
+    private void call(LightblueDataRequest req) {
+        int n = inFlight.incrementAndGet();
+        synchronized (this) {
+            requests.add(req.getBodyJson());
+            if (n > maxInFlight.get()) {
+                maxInFlight.set(n);
+            }
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static void collectValues(JsonNode node, List<JsonNode> values) {
+        if (node != null) {
+            if (node.has("rvalue")) {
+                values.add(node.get("rvalue"));
+            }
+            for (Iterator<JsonNode> itr = node.elements(); itr.hasNext();) {
+                collectValues(itr.next(), values);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds and probes a document id map the way a migration job does, using
+ * Identity and the previous implementation of it, for a batch of ids of
+ * different shapes. Run with:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.redhat.lightblue.migrator.IdentityBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentityBenchmark {
+
+    /**
+     * Identity as it was, with the hash code multiplying value hashes
+     */
+    static class OldIdentity {
+        private final Object[] values;
+
+        OldIdentity(JsonNode doc, List<String> identityFields) {
+            values = new Object[identityFields.size()];
+            int i = 0;
+            for (String field : identityFields) {
+                JsonNode n = Identity.getFieldValue(doc, field);
+                values[i++] = n == null || n.isNull() ? null : n.asText();
+            }
+        }
+
+        public int hashCode() {
+            int v = 37;
+            for (Object x : values) {
+                if (x != null) {
+                    v *= x.hashCode();
+                }
+            }
+            return v;
+        }
+
+        public boolean equals(Object x) {
+            return x instanceof OldIdentity && Arrays.equals(values, ((OldIdentity) x).values);
+        }
+    }
+
+    /**
+     * numeric: sequential integer _id, uuid: random string _id, composite:
+     * tenant and sequence number
+     */
+    @Param({"numeric", "uuid", "composite"})
+    public String idType;
+
+    @Param({"10000"})
+    public int size;
+
+    private List<JsonNode> docs;
+    private List<String> identityFields;
+
+    @Setup
+    public void setup() {
+        docs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ObjectNode doc = JsonNodeFactory.instance.objectNode();
+            switch (idType) {
+                case "numeric":
+                    doc.put("_id", 1000000 + i);
+                    break;
+                case "uuid":
+                    doc.put("_id", UUID.randomUUID().toString());
+                    break;
+                default:
+                    doc.put("tenant", "tenant" + (i % 16));
+                    doc.put("seq", i / 16);
+            }
+            docs.add(doc);
+        }
+        identityFields = "composite".equals(idType) ? Arrays.asList("tenant", "seq") : Arrays.asList("_id");
+    }
+
+    @Benchmark
+    public int identity() {
+        Map<Identity, JsonNode> map = new HashMap<>();
+        for (JsonNode doc : docs) {
+            map.put(new Identity(doc, identityFields), doc);
+        }
+        int found = 0;
+        for (JsonNode doc : docs) {
+            if (map.containsKey(new Identity(doc, identityFields))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int oldIdentity() {
+        Map<OldIdentity, JsonNode> map = new HashMap<>();
+        for (JsonNode doc : docs) {
+            map.put(new OldIdentity(doc, identityFields), doc);
+        }
+        int found = 0;
+        for (JsonNode doc : docs) {
+            if (map.containsKey(new OldIdentity(doc, identityFields))) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(IdentityBenchmark.class.getSimpleName()).build()).run();
+    }
+}
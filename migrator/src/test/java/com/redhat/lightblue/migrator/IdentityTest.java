@@ -0,0 +1,67 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class IdentityTest {
+
+    @Test
+    public void testEquals() {
+        ObjectNode doc = JsonNodeFactory.instance.objectNode();
+        doc.put("_id", 12);
+        doc.put("name", "x");
+        Identity id = new Identity(doc, Arrays.asList("_id"));
+        Assert.assertEquals(new Identity(new Object[]{"12"}), id);
+        Assert.assertEquals(new Identity(new Object[]{"12"}).hashCode(), id.hashCode());
+        Assert.assertEquals("12", id.get(0));
+        Assert.assertEquals(1, id.size());
+        Assert.assertNotEquals(new Identity(new Object[]{"012"}), id);
+        Assert.assertNotEquals(new Identity(new Object[]{"-0"}), new Identity(new Object[]{"0"}));
+
+        Identity id2 = new Identity(doc, Arrays.asList("_id", "name", "missing"));
+        Assert.assertEquals(new Identity(new Object[]{"12", "x", null}), id2);
+        Assert.assertNotEquals(new Identity(new Object[]{"x", "12", null}), id2);
+        Assert.assertEquals("12,x,null", id2.toString());
+        Assert.assertNull(id2.get(2));
+        Assert.assertNotEquals(id, id2);
+    }
+
+    @Test
+    public void testIdentityFields() {
+        ObjectNode doc = JsonNodeFactory.instance.objectNode();
+        doc.putObject("a").put("b", "x");
+        doc.put("c", 1);
+        IdentityFields fields = new IdentityFields(Arrays.asList("a.b", "c", "a.z.q"));
+        Assert.assertEquals(new Identity(new Object[]{"x", "1", null}), new Identity(doc, fields));
+        Assert.assertEquals(new Identity(doc, fields.getFields()), new Identity(doc, fields));
+
+        MigrationConfiguration cfg = new MigrationConfiguration();
+        cfg.setTimestampFieldName("lastUpdate, created");
+        Assert.assertEquals(Arrays.asList("lastUpdate", "created"), cfg.getTimestampFieldNames());
+        cfg.setTimestampFieldName("modified");
+        Assert.assertEquals(Arrays.asList("modified"), cfg.getTimestampFieldNames());
+    }
+
+    @Test
+    public void testHashSpread() {
+        // The old hash multiplied value hashes, so swapped values, and
+        // values with a zero hash collided
+        Set<Integer> hashes = new HashSet<>();
+        int n = 0;
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                hashes.add(new Identity(new Object[]{Integer.toString(i), Integer.toString(j)}).hashCode());
+                n++;
+            }
+        }
+        Assert.assertEquals(n, hashes.size());
+        Assert.assertNotEquals(new Identity(new Object[]{"", "a"}).hashCode(), new Identity(new Object[]{"", "b"}).hashCode());
+    }
+}
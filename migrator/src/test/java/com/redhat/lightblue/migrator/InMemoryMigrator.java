@@ -0,0 +1,117 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.response.LightblueResponse;
+
+/**
+ * A migrator working on in-memory source and destination documents, so
+ * migrate() can be tested without a lightblue server. Documents are keyed by
+ * their "id" field.
+ */
+public class InMemoryMigrator extends Migrator {
+
+    public final TreeMap<String, JsonNode> source = new TreeMap<>();
+    public final TreeMap<String, JsonNode> dest = new TreeMap<>();
+    public final List<List<JsonNode>> savedBatches = new ArrayList<>();
+    // The identity each requested page starts after, null for the first
+    public final List<String> requestedPages = new ArrayList<>();
+    public final List<String> checkpoints = new ArrayList<>();
+
+    private final MigrationConfiguration cfg;
+
+    public InMemoryMigrator(MigrationConfiguration cfg) {
+        super(new ThreadGroup("test"));
+        this.cfg = cfg;
+        MigrationJob mj = new MigrationJob();
+        mj.set_id("job");
+        mj.setConfigurationName(cfg.getConfigurationName());
+        setMigrationJob(mj);
+        initLoggers();
+    }
+
+    public static MigrationConfiguration config() {
+        MigrationConfiguration cfg = new MigrationConfiguration();
+        cfg.setConfigurationName("test");
+        List<String> idFields = new ArrayList<>();
+        idFields.add("id");
+        cfg.setDestinationIdentityFields(idFields);
+        return cfg;
+    }
+
+    public static ObjectNode doc(String id, String value) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("id", id);
+        node.put("value", value);
+        return node;
+    }
+
+    @Override
+    public MigrationConfiguration getMigrationConfiguration() {
+        return cfg;
+    }
+
+    @Override
+    public List<JsonNode> getSourceDocuments() {
+        return new ArrayList<>(source.values());
+    }
+
+    @Override
+    public List<JsonNode> getSourceDocuments(Identity after, int n) {
+        requestedPages.add(after == null ? null : after.get(0).toString());
+        List<JsonNode> page = new ArrayList<>();
+        for (JsonNode doc : (after == null ? source : source.tailMap(after.get(0).toString(), false)).values()) {
+            if (page.size() >= n) {
+                break;
+            }
+            page.add(doc);
+        }
+        return page;
+    }
+
+    @Override
+    public List<JsonNode> getDestinationDocuments(Collection<Identity> ids) {
+        List<JsonNode> ret = new ArrayList<>();
+        for (Identity id : ids) {
+            JsonNode d = dest.get(id.get(0));
+            if (d != null) {
+                ret.add(d);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<LightblueResponse> save(List<JsonNode> docs) throws LightblueException {
+        savedBatches.add(new ArrayList<>(docs));
+        for (JsonNode doc : docs) {
+            dest.put(doc.get("id").asText(), doc);
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    protected void saveCheckpoint(Identity last) {
+        super.saveCheckpoint(last);
+        checkpoints.add(last.get(0).toString());
+    }
+
+    @Override
+    public String createRangeQuery(Date startDate, Date endDate) {
+        return null;
+    }
+
+    public Map<String, JsonNode> getDest() {
+        return dest;
+    }
+}
@@ -0,0 +1,218 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.response.LightblueResponse;
+
+public class MigratorControllerTest {
+
+    /**
+     * A migrator with nothing to migrate
+     */
+    public static class EmptyMigrator extends Migrator {
+        public EmptyMigrator(ThreadGroup g) {
+            super(g);
+        }
+
+        @Override
+        public List<JsonNode> getSourceDocuments() {
+            Breakpoint.checkpoint("EmptyMigrator:getSourceDocuments");
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<JsonNode> getDestinationDocuments(Collection<Identity> docs) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public List<LightblueResponse> save(List<JsonNode> docs) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public String createRangeQuery(Date startDate, Date endDate) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns nJobs available jobs for every job search
+     */
+    private static ScriptedLightblueClient jobClient(final int nJobs) {
+        return new ScriptedLightblueClient() {
+            @Override
+            protected List<JsonNode> respond(Request req) {
+                List<JsonNode> ret = new ArrayList<>();
+                if (req.entity.equals(MigrationJob.ENTITY_NAME) && req.operation.equals("find")) {
+                    for (int i = 0; i < nJobs; i++) {
+                        ObjectNode job = JsonNodeFactory.instance.objectNode();
+                        job.put("_id", "job" + i);
+                        job.put("configurationName", "test");
+                        job.put("status", MigrationJob.STATE_AVAILABLE);
+                        ret.add(job);
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
+    private static MigratorController controller(final ScriptedLightblueClient cli, int threadCount) {
+        MainConfiguration mainCfg = new MainConfiguration() {
+            @Override
+            public LightblueClient getLightblueClient() {
+                return cli;
+            }
+        };
+        mainCfg.setName("test");
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setThreadCount(threadCount);
+        cfg.setMigratorClass(EmptyMigrator.class.getName());
+        return new MigratorController(new Controller(mainCfg), cfg);
+    }
+
+    @After
+    public void clearBreakpoints() {
+        Breakpoint.clearAll();
+    }
+
+    @Test
+    public void prefetchUpToFreeSlotsTest() throws Exception {
+        ScriptedLightblueClient cli = jobClient(10);
+        MigratorController ctl = controller(cli, 3);
+
+        Assert.assertNotNull(ctl.nextMigrationJob(3));
+        // Three jobs are claimed with one search, one of them is returned
+        Assert.assertEquals(3, cli.locks.size());
+        int nSearches = cli.getRequests(MigrationJob.ENTITY_NAME, "find").size();
+
+        // The next two come from the prefetched jobs
+        Assert.assertNotNull(ctl.nextMigrationJob(2));
+        Assert.assertNotNull(ctl.nextMigrationJob(1));
+        Assert.assertEquals(nSearches, cli.getRequests(MigrationJob.ENTITY_NAME, "find").size());
+        Assert.assertEquals(3, cli.locks.size());
+
+        // At least one job is claimed even if there are no free slots
+        Assert.assertNotNull(ctl.nextMigrationJob(0));
+        Assert.assertEquals(4, cli.locks.size());
+    }
+
+    @Test
+    public void releasePrefetchedJobsTest() throws Exception {
+        ScriptedLightblueClient cli = jobClient(10);
+        MigratorController ctl = controller(cli, 4);
+
+        MigratorController.LockRecord started = ctl.nextMigrationJob(4);
+        Assert.assertEquals(4, cli.locks.size());
+        ctl.releasePrefetchedJobs();
+        // Only the job that was taken is still claimed
+        Assert.assertEquals(1, cli.locks.size());
+        Assert.assertTrue(cli.locks.contains(started.mj.get_id()));
+    }
+
+    @Test(timeout = 30000)
+    public void releasePrefetchedJobsOnStopTest() throws Exception {
+        ScriptedLightblueClient cli = jobClient(10);
+        MigratorController ctl = controller(cli, 3);
+
+        Breakpoint.stop("MigratorController:process");
+        ctl.start();
+        // The first job is about to start, two more are prefetched
+        Breakpoint.waitUntil("MigratorController:process");
+        Assert.assertEquals(3, cli.locks.size());
+        ctl.setStopped();
+        Breakpoint.resume("MigratorController:process");
+        ctl.join();
+        // The prefetched jobs are released when the controller stops,
+        // the started job when its migrator ends
+        while (true) {
+            synchronized (cli.locks) {
+                if (cli.locks.isEmpty()) {
+                    break;
+                }
+                Assert.assertTrue(cli.locks.size() <= 1);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void activeMigratorsTest() throws Exception {
+        ScriptedLightblueClient cli = jobClient(1);
+        MigratorController ctl = controller(cli, 1);
+        Assert.assertTrue(ctl.getActiveMigrators().isEmpty());
+
+        Breakpoint.stop("EmptyMigrator:getSourceDocuments");
+        ctl.start();
+        Breakpoint.waitUntil("EmptyMigrator:getSourceDocuments");
+        // The migrator runs on a pooled worker, not on a thread of its own
+        List<Migrator> migrators = ctl.getActiveMigrators();
+        Assert.assertEquals(1, migrators.size());
+        Assert.assertTrue(migrators.get(0) instanceof EmptyMigrator);
+        Assert.assertEquals("job0", migrators.get(0).getMigrationJob().get_id());
+
+        ctl.setStopped();
+        Breakpoint.resume("EmptyMigrator:getSourceDocuments");
+        ctl.join();
+        while (!ctl.getActiveMigrators().isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void wakeupBeforeWaitTest() throws Exception {
+        MigratorController ctl = controller(jobClient(0), 1);
+        // Jobs are created before the controller starts waiting
+        ctl.wakeup();
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(ctl.awaitWakeup(20000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        // The wakeup is consumed
+        Assert.assertFalse(ctl.awaitWakeup(10));
+    }
+
+    @Test(timeout = 30000)
+    public void wakeupDuringWaitTest() throws Exception {
+        final MigratorController ctl = controller(jobClient(0), 1);
+        Thread waker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                ctl.wakeup();
+            }
+        };
+        waker.start();
+        Assert.assertTrue(ctl.awaitWakeup(20000));
+        waker.join();
+    }
+
+    @Test
+    public void idleBackoffTest() {
+        long wait = MigratorController.MIN_IDLE_WAIT_MS;
+        wait = MigratorController.nextIdleWait(wait, false);
+        Assert.assertEquals(2 * MigratorController.MIN_IDLE_WAIT_MS, wait);
+        wait = MigratorController.nextIdleWait(wait, false);
+        Assert.assertEquals(4 * MigratorController.MIN_IDLE_WAIT_MS, wait);
+        for (int i = 0; i < 20; i++) {
+            wait = MigratorController.nextIdleWait(wait, false);
+        }
+        Assert.assertEquals(MigratorController.MAX_IDLE_WAIT_MS, wait);
+        // A wakeup resets the backoff
+        Assert.assertEquals(MigratorController.MIN_IDLE_WAIT_MS, MigratorController.nextIdleWait(wait, true));
+    }
+}
@@ -85,12 +85,12 @@ public class MigratorTest extends AbstractMigratorController {
 
         Breakpoint.waitUntil("Migrator:sourceDocs");
         // We got source docs, peek
-        Thread[] threads = new Thread[1];
-        Assert.assertEquals(1, controller.
+        List<Migrator> migrators = controller.
                 getMigrationProcesses().
-                get("customerMigration_0").mig.getMigratorThreads().enumerate(threads));
+                get("customerMigration_0").mig.getActiveMigrators();
+        Assert.assertEquals(1, migrators.size());
 
-        TestMigrator m = (TestMigrator) threads[0];
+        TestMigrator m = (TestMigrator) migrators.get(0);
         Assert.assertEquals(5, m.getSourceDocs().size());
 
         Breakpoint.stop("Migrator:complete");
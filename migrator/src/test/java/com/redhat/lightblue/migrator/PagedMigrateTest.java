@@ -0,0 +1,552 @@
+package com.redhat.lightblue.migrator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.LightblueClient;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.response.LightblueResponse;
+
+public class PagedMigrateTest {
+
+    private InMemoryMigrator setup(int pageSize) {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setSourcePageSize(pageSize);
+        InMemoryMigrator m = new InMemoryMigrator(cfg);
+        for (int i = 0; i < 10; i++) {
+            m.source.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        // id0-id3 are consistent, id4-id5 are inconsistent, rest are missing
+        for (int i = 0; i < 4; i++) {
+            m.dest.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        m.dest.put("id4", InMemoryMigrator.doc("id4", "x"));
+        m.dest.put("id5", InMemoryMigrator.doc("id5", "x"));
+        return m;
+    }
+
+    private void assertCounts(MigrationJobExecution execution) {
+        Assert.assertNull(execution.getErrorMsg());
+        Assert.assertEquals(10, execution.getProcessedDocumentCount());
+        Assert.assertEquals(8, execution.getConsistentDocumentCount());
+        Assert.assertEquals(2, execution.getInconsistentDocumentCount());
+        Assert.assertEquals(2, execution.getOverwrittenDocumentCount());
+    }
+
+    @Test
+    public void unpagedTest() {
+        InMemoryMigrator m = setup(0);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        // id0-id3 match, id4-id5 need a diff
+        Assert.assertEquals(4, execution.getFingerprintMatchCount());
+        Assert.assertEquals(2, execution.getFullDiffCount());
+        Assert.assertTrue(m.requestedPages.isEmpty());
+        Assert.assertEquals(1, m.savedBatches.size());
+        Assert.assertEquals(6, m.savedBatches.get(0).size());
+    }
+
+    @Test
+    public void pagedTest() {
+        InMemoryMigrator m = setup(4);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        // id0-id3, id4-id7, id8-id9
+        Assert.assertEquals(Arrays.asList(null, "id3", "id7"), m.requestedPages);
+        Assert.assertEquals(2, m.getSourceDocs().size());
+        Assert.assertEquals("v4", m.getDest().get("id4").get("value").asText());
+        Assert.assertEquals("v9", m.getDest().get("id9").get("value").asText());
+        Assert.assertEquals(Arrays.asList("id3", "id7", "id9"), m.checkpoints);
+    }
+
+    @Test
+    public void resumeTest() {
+        InMemoryMigrator m = setup(4);
+        m.getMigrationJob().setCheckpointIdentity(new Identity(new Object[]{"id3"}).toJson());
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        // id4-id7, id8-id9
+        Assert.assertEquals(Arrays.asList("id3", "id7"), m.requestedPages);
+        Assert.assertEquals(6, execution.getProcessedDocumentCount());
+        Assert.assertEquals(Arrays.asList("id7", "id9"), m.checkpoints);
+        // id0-id3 are not looked at again
+        Assert.assertEquals("v9", m.getDest().get("id9").get("value").asText());
+    }
+
+    @Test
+    public void resumeAfterSourceChangesTest() {
+        InMemoryMigrator m = setup(4);
+        m.getMigrationJob().setCheckpointIdentity(new Identity(new Object[]{"id3"}).toJson());
+        // Documents before the checkpoint come and go between the runs
+        m.source.remove("id0");
+        m.source.remove("id1");
+        m.source.put("id00", InMemoryMigrator.doc("id00", "v"));
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        // Still continues with id4, nothing is skipped
+        Assert.assertEquals(6, execution.getProcessedDocumentCount());
+        Assert.assertEquals("v4", m.getDest().get("id4").get("value").asText());
+        Assert.assertEquals(Arrays.asList("id7", "id9"), m.checkpoints);
+    }
+
+    @Test
+    public void resumeLimitTest() {
+        final ScriptedLightblueClient cli = new ScriptedLightblueClient();
+        MainConfiguration mainCfg = new MainConfiguration() {
+            @Override
+            public LightblueClient getLightblueClient() {
+                return cli;
+            }
+        };
+        mainCfg.setName("test");
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        AbstractController ctl = new AbstractController(new Controller(mainCfg), cfg, "test") {
+        };
+        InMemoryMigrator m = new InMemoryMigrator(cfg) {
+            @Override
+            public void migrate(MigrationJobExecution execution) {
+                // Killed by the thread monitor
+                Thread.currentThread().interrupt();
+            }
+        };
+        m.setController(ctl);
+        ActiveExecution ae = new ActiveExecution();
+        ae.set_id("ae");
+        ae.setStartTime(new Date());
+        m.setActiveExecution(ae);
+
+        m.getMigrationJob().setResumeCount(Migrator.MAX_RESUME_COUNT - 1);
+        m.monitoredRun();
+        JsonNode set = lastJobUpdate(cli);
+        Assert.assertEquals(MigrationJob.STATE_AVAILABLE, set.get("status").asText());
+        Assert.assertEquals(Migrator.MAX_RESUME_COUNT, set.get("resumeCount").asInt());
+
+        m.getMigrationJob().setResumeCount(Migrator.MAX_RESUME_COUNT);
+        m.monitoredRun();
+        set = lastJobUpdate(cli);
+        Assert.assertEquals(MigrationJob.STATE_FAILED, set.get("status").asText());
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void executionSummaryTest() {
+        final ScriptedLightblueClient cli = new ScriptedLightblueClient();
+        MainConfiguration mainCfg = new MainConfiguration() {
+            @Override
+            public LightblueClient getLightblueClient() {
+                return cli;
+            }
+        };
+        mainCfg.setName("test");
+        InMemoryMigrator m = setup(4);
+        AbstractController ctl = new AbstractController(new Controller(mainCfg), m.getMigrationConfiguration(), "test") {
+        };
+        m.setController(ctl);
+        ActiveExecution ae = new ActiveExecution();
+        ae.set_id("ae");
+        ae.setStartTime(new Date());
+        m.setActiveExecution(ae);
+        m.monitoredRun();
+
+        // The execution summary is saved with the job
+        List<ScriptedLightblueClient.Request> updates = cli.getRequests("migrationJob", "update");
+        String stats = updates.get(updates.size() - 1).body.findValue("stageStatistics").asText();
+        for (String stage : new String[]{Migrator.STAGE_SOURCE, Migrator.STAGE_DESTINATION, Migrator.STAGE_COMPARE, Migrator.STAGE_SAVE}) {
+            Assert.assertTrue(stats, stats.contains(stage + ": batches=3 docs="));
+        }
+    }
+
+    private static JsonNode lastJobUpdate(ScriptedLightblueClient cli) {
+        List<ScriptedLightblueClient.Request> updates = cli.getRequests("migrationJob", "update");
+        return updates.get(updates.size() - 1).body.get("update").get(0).get("$set");
+    }
+
+    @Test
+    public void pipelinedResumeTest() {
+        InMemoryMigrator m = setup(3);
+        m.getMigrationConfiguration().setPipelineQueueSize(1);
+        m.getMigrationJob().setCheckpointIdentity(new Identity(new Object[]{"id2"}).toJson());
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        Assert.assertEquals("id2", m.requestedPages.get(0));
+        Assert.assertEquals(7, execution.getProcessedDocumentCount());
+        Assert.assertEquals(Arrays.asList("id5", "id8", "id9"), m.checkpoints);
+    }
+
+    @Test
+    public void failedSaveCheckpointTest() {
+        for (int pipelineQueueSize : new int[]{0, 1}) {
+            InMemoryMigrator m = new InMemoryMigrator(setup(3).getMigrationConfiguration()) {
+                @Override
+                public List<LightblueResponse> save(List<JsonNode> docs) throws LightblueException {
+                    for (JsonNode doc : docs) {
+                        if (doc.get("id").asText().equals("id5")) {
+                            throw new LightblueException("save failed");
+                        }
+                    }
+                    return super.save(docs);
+                }
+            };
+            m.getMigrationConfiguration().setPipelineQueueSize(pipelineQueueSize);
+            m.source.putAll(setup(3).source);
+            MigrationJobExecution execution = new MigrationJobExecution();
+            m.migrate(execution);
+            Assert.assertTrue(execution.getErrorMsg().contains("save failed"));
+            // The page with id5 is id3-id5, so a resumed job must start
+            // after id2
+            Assert.assertEquals(Arrays.asList("id2"), m.checkpoints);
+        }
+    }
+
+    @Test
+    public void pagedExactMultipleTest() {
+        InMemoryMigrator m = setup(5);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        // id0-id4, id5-id9, and an empty page
+        Assert.assertEquals(3, m.requestedPages.size());
+    }
+
+    @Test
+    public void pipelinedTest() {
+        InMemoryMigrator m = setup(3);
+        m.getMigrationConfiguration().setPipelineQueueSize(1);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        // id0-id2, id3-id5, id6-id8, id9
+        Assert.assertEquals(4, m.requestedPages.size());
+        Assert.assertEquals(4, m.savedBatches.size());
+        Assert.assertEquals("v5", m.getDest().get("id5").get("value").asText());
+        Assert.assertEquals("v9", m.getDest().get("id9").get("value").asText());
+        Assert.assertEquals(4, execution.getStageStatistics().size());
+        Assert.assertEquals(10, execution.getStageStatistics(Migrator.STAGE_SOURCE).getDocumentCount());
+        Assert.assertEquals(10, execution.getStageStatistics(Migrator.STAGE_COMPARE).getDocumentCount());
+        Assert.assertEquals(4, execution.getStageStatistics(Migrator.STAGE_SAVE).getBatchCount());
+    }
+
+    @Test
+    public void compactDocumentsTest() {
+        InMemoryMigrator m = setup(3);
+        m.getMigrationConfiguration().setPipelineQueueSize(1);
+        m.getMigrationConfiguration().setCompactDocuments(true);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        // id0-id3 match by stored fingerprint, only id4-id5 are parsed
+        Assert.assertEquals(4, execution.getFingerprintMatchCount());
+        Assert.assertEquals(2, execution.getFullDiffCount());
+        Assert.assertTrue(m.getSourceDocs() instanceof CompactDocumentMap);
+        Assert.assertEquals("v5", m.getDest().get("id5").get("value").asText());
+        Assert.assertEquals("v9", m.getDest().get("id9").get("value").asText());
+
+        CompactDocumentMap map = new CompactDocumentMap(new FieldPathMatcher(null), false, null);
+        Assert.assertNull(map.put(new Identity(new Object[]{"1"}), InMemoryMigrator.doc("1", "a")));
+        Assert.assertEquals("a", map.put(new Identity(new Object[]{"1"}), InMemoryMigrator.doc("1", "b")).get("value").asText());
+        Assert.assertEquals("b", map.remove(new Identity(new Object[]{"1"})).get("value").asText());
+        Assert.assertNull(map.remove(new Identity(new Object[]{"1"})));
+    }
+
+    @Test
+    public void spillTest() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "spillTest" + System.nanoTime());
+        InMemoryMigrator m = setup(3);
+        m.getMigrationConfiguration().setSpillDirectory(dir.getPath());
+        // Spill everything
+        m.getMigrationConfiguration().setSpillHeapThreshold(0);
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        assertCounts(execution);
+        Assert.assertEquals("v5", m.getDest().get("id5").get("value").asText());
+        // Spill files are deleted, and the closed maps of the last batch
+        // are empty instead of failing
+        Assert.assertEquals(0, dir.list().length);
+        Assert.assertTrue(m.getSourceDocs().isEmpty());
+        Assert.assertTrue(m.getDestDocs().isEmpty());
+        Assert.assertTrue(m.getRewriteDocs().isEmpty());
+        dir.delete();
+
+        CompactDocumentMap map = new CompactDocumentMap(new FieldPathMatcher(null), false, null, dir, 0);
+        map.put(new Identity(new Object[]{"1"}), InMemoryMigrator.doc("1", "a"));
+        map.put(new Identity(new Object[]{"2"}), InMemoryMigrator.doc("2", "b"));
+        Assert.assertEquals(2, map.getSpillCount());
+        Assert.assertTrue(map.getCompact(new Identity(new Object[]{"2"})).isSpilled());
+        Assert.assertEquals("b", map.get(new Identity(new Object[]{"2"})).get("value").asText());
+        Assert.assertEquals("a", map.get(new Identity(new Object[]{"1"})).get("value").asText());
+        // put and remove return the previous document, spilled or not
+        Assert.assertEquals("b", map.put(new Identity(new Object[]{"2"}), InMemoryMigrator.doc("2", "c")).get("value").asText());
+        Assert.assertEquals("c", map.remove(new Identity(new Object[]{"2"})).get("value").asText());
+        Assert.assertNull(map.remove(new Identity(new Object[]{"2"})));
+        Assert.assertNull(map.put(new Identity(new Object[]{"3"}), InMemoryMigrator.doc("3", "d")));
+        // Documents are copies
+        ((ObjectNode) map.get(new Identity(new Object[]{"3"}))).put("value", "e");
+        Assert.assertEquals("d", map.get(new Identity(new Object[]{"3"})).get("value").asText());
+        map.close();
+        Assert.assertEquals(0, dir.list().length);
+        Assert.assertEquals(0, map.size());
+        Assert.assertNull(map.get(new Identity(new Object[]{"2"})));
+        dir.delete();
+    }
+
+    @Test
+    public void spillReadsPagesTest() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "spillReadsPagesTest" + System.nanoTime());
+        InMemoryMigrator m = setup(0);
+        m.getMigrationConfiguration().setSpillDirectory(dir.getPath());
+        for (int i = 10; i < Migrator.SPILL_PAGE_SIZE + 10; i++) {
+            m.source.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        Assert.assertNull(execution.getErrorMsg());
+        Assert.assertEquals(Migrator.SPILL_PAGE_SIZE + 10, execution.getProcessedDocumentCount());
+        // Without a page size, a job that may spill is still read in pages
+        Assert.assertEquals(2, m.requestedPages.size());
+        Assert.assertEquals(2, m.savedBatches.size());
+        dir.delete();
+    }
+
+    @Test
+    public void spillIdentitiesTest() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "spillIdentitiesTest" + System.nanoTime());
+        SpillableIdentitySet set = new SpillableIdentitySet(dir, 0);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(set.add(new Identity(new Object[]{"id" + i, i % 3 == 0 ? null : Integer.toString(i)})));
+        }
+        Assert.assertFalse(set.add(new Identity(new Object[]{"id3", null})));
+        Assert.assertEquals(1000, set.size());
+        Assert.assertEquals(1000, set.getSpillCount());
+        Assert.assertTrue(set.contains(new Identity(new Object[]{"id999", null})));
+        Assert.assertTrue(set.contains(new Identity(new Object[]{"id998", "998"})));
+        Assert.assertFalse(set.contains(new Identity(new Object[]{"id998", null})));
+        Assert.assertTrue(set.remove(new Identity(new Object[]{"id1", "1"})));
+        Assert.assertFalse(set.contains(new Identity(new Object[]{"id1", "1"})));
+        int n = 0;
+        for (Identity id : set) {
+            Assert.assertTrue(set.contains(id));
+            n++;
+        }
+        Assert.assertEquals(999, n);
+        // Cleared records are not read back, and the file can be reused
+        set.clear();
+        Assert.assertEquals(0, set.size());
+        Assert.assertFalse(set.iterator().hasNext());
+        Assert.assertTrue(set.add(new Identity(new Object[]{"id1", "1"})));
+        Assert.assertEquals(1, set.getSpillCount());
+        n = 0;
+        for (Identity id : set) {
+            Assert.assertEquals(new Identity(new Object[]{"id1", "1"}), id);
+            n++;
+        }
+        Assert.assertEquals(1, n);
+        set.close();
+        Assert.assertEquals(0, dir.list().length);
+
+        // Keys of spilled documents are in the spill file too
+        CompactDocumentMap map = new CompactDocumentMap(new FieldPathMatcher(null), false, null, dir, 0);
+        for (int i = 0; i < 100; i++) {
+            map.put(new Identity(new Object[]{"id" + i}), InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        map.put(new Identity(new Object[]{"id5"}), InMemoryMigrator.doc("id5", "x"));
+        Assert.assertEquals(100, map.size());
+        Assert.assertEquals("x", map.get(new Identity(new Object[]{"id5"})).get("value").asText());
+        Assert.assertTrue(map.keySet().contains(new Identity(new Object[]{"id99"})));
+        Assert.assertFalse(map.containsKey(new Identity(new Object[]{"id100"})));
+        n = 0;
+        for (Identity id : map.keySet()) {
+            Assert.assertTrue(map.containsKey(id));
+            n++;
+        }
+        Assert.assertEquals(100, n);
+        map.close();
+        Assert.assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    @Test
+    public void parallelCompareTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setCompareThreads(4);
+        InMemoryMigrator m = new InMemoryMigrator(cfg);
+        for (int i = 0; i < 200; i++) {
+            m.source.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+            m.dest.put("id" + i, InMemoryMigrator.doc("id" + i, i % 4 == 0 ? "x" : "v" + i));
+        }
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        Assert.assertNull(execution.getErrorMsg());
+        Assert.assertEquals(200, execution.getProcessedDocumentCount());
+        Assert.assertEquals(50, execution.getInconsistentDocumentCount());
+        Assert.assertEquals(150, execution.getFingerprintMatchCount());
+        Assert.assertEquals(50, m.getRewriteDocs().size());
+        Assert.assertTrue(m.getRewriteDocs().contains(new Identity(new Object[]{"id8"})));
+        Assert.assertEquals("v8", m.getDest().get("id8").get("value").asText());
+    }
+
+    @Test
+    public void pipelinedFailureTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setSourcePageSize(1);
+        cfg.setPipelineQueueSize(1);
+        InMemoryMigrator m = new InMemoryMigrator(cfg) {
+            @Override
+            public List<LightblueResponse> save(List<JsonNode> docs) {
+                throw new RuntimeException("save failed");
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            m.source.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        Assert.assertNotNull(execution.getErrorMsg());
+        Assert.assertTrue(execution.getErrorMsg().contains("save failed"));
+    }
+
+    @Test(timeout = 30000)
+    public void pipelinedLastBatchFailureTest() {
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setSourcePageSize(1);
+        cfg.setPipelineQueueSize(1);
+        InMemoryMigrator m = new InMemoryMigrator(cfg) {
+            @Override
+            protected void compareDocuments(MigrationBatch batch, MigrationJobExecution execution) {
+                if (batch.getSourceDocs().containsKey(new Identity(new Object[]{"id9"}))) {
+                    // Let all the pages be read, so the failure is seen
+                    // while waiting for the stages to end, with the
+                    // destination stage blocked on the compare queue
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                    }
+                    throw new RuntimeException("compare failed");
+                }
+                super.compareDocuments(batch, execution);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            m.source.put("id" + i, InMemoryMigrator.doc("id" + i, "v" + i));
+        }
+        MigrationJobExecution execution = new MigrationJobExecution();
+        m.migrate(execution);
+        Assert.assertNotNull(execution.getErrorMsg());
+        Assert.assertTrue(execution.getErrorMsg().contains("compare failed"));
+    }
+
+    @Test
+    public void splitOversizedJobTest() throws Exception {
+        for (String checkpoint : new String[]{null, new Identity(new Object[]{"id5"}).toJson()}) {
+            final ScriptedLightblueClient cli = new ScriptedLightblueClient();
+            MainConfiguration mainCfg = new MainConfiguration() {
+                @Override
+                public LightblueClient getLightblueClient() {
+                    return cli;
+                }
+            };
+            mainCfg.setName("test");
+            MigrationConfiguration cfg = InMemoryMigrator.config();
+            cfg.setMaxJobDocuments(10);
+            AbstractController ctl = new AbstractController(new Controller(mainCfg), cfg, "test") {
+            };
+            // 100 documents a minute
+            InMemoryMigrator m = new InMemoryMigrator(cfg) {
+                @Override
+                public void migrate(MigrationJobExecution execution) {
+                }
+
+                @Override
+                public String createRangeQuery(Date startDate, Date endDate) {
+                    return startDate.getTime() + "," + endDate.getTime();
+                }
+
+                @Override
+                public int countSourceDocuments(String query) {
+                    String[] range = query.split(",");
+                    return (int) ((Long.parseLong(range[1]) - Long.parseLong(range[0])) / 600);
+                }
+            };
+            m.setController(ctl);
+            ActiveExecution ae = new ActiveExecution();
+            ae.set_id("ae");
+            ae.setStartTime(new Date());
+            m.setActiveExecution(ae);
+            MigrationJob mj = m.createRangeJob(new Date(0), new Date(60000));
+            mj.set_id("job");
+            mj.setCheckpointIdentity(checkpoint);
+            m.setMigrationJob(mj);
+
+            m.monitoredRun();
+            if (checkpoint == null) {
+                Assert.assertEquals(1, cli.getRequests(MigrationJob.ENTITY_NAME, "insert").size());
+                Assert.assertEquals("0,3750", mj.getQuery());
+            } else {
+                // A resumed job may be past the head range already
+                Assert.assertEquals(0, cli.getRequests(MigrationJob.ENTITY_NAME, "insert").size());
+                Assert.assertEquals("0,60000", mj.getQuery());
+            }
+        }
+    }
+
+    @Test
+    public void splitRangeTest() {
+        // 100 documents at t=0..99 secs, plus 100 more at t=100 secs
+        final long[] timestamps = new long[200];
+        for (int i = 0; i < 100; i++) {
+            timestamps[i] = i * 1000l;
+            timestamps[100 + i] = 100000l;
+        }
+        InMemoryMigrator m = new InMemoryMigrator(InMemoryMigrator.config()) {
+            @Override
+            public String createRangeQuery(Date startDate, Date endDate) {
+                return startDate.getTime() + "," + endDate.getTime();
+            }
+
+            @Override
+            public int countSourceDocuments(String query) {
+                String[] range = query.split(",");
+                long start = Long.parseLong(range[0]);
+                long end = Long.parseLong(range[1]);
+                int n = 0;
+                for (long t : timestamps) {
+                    if (t >= start && t < end) {
+                        n++;
+                    }
+                }
+                return n;
+            }
+        };
+        List<Date[]> ranges = m.splitRange(new Date(0), new Date(128000), 40);
+        // Ranges are consecutive and cover the whole period
+        Assert.assertEquals(0, ranges.get(0)[0].getTime());
+        Assert.assertEquals(128000, ranges.get(ranges.size() - 1)[1].getTime());
+        for (int i = 1; i < ranges.size(); i++) {
+            Assert.assertEquals(ranges.get(i - 1)[1], ranges.get(i)[0]);
+        }
+        for (Date[] range : ranges) {
+            int n = m.countSourceDocuments(m.createRangeQuery(range[0], range[1]));
+            long span = range[1].getTime() - range[0].getTime();
+            // The documents at t=100 secs cannot be split
+            Assert.assertTrue(n <= 40 || span < 2 * Migrator.MIN_SPLIT_MS);
+            Assert.assertTrue(span >= Migrator.MIN_SPLIT_MS);
+        }
+        Assert.assertTrue(ranges.size() > 3);
+
+        // Nothing to split
+        Assert.assertEquals(1, m.splitRange(new Date(0), new Date(128000), 1000).size());
+
+        MigrationJob mj = m.createRangeJob(new Date(0), new Date(1000));
+        Assert.assertTrue(mj.isGenerated());
+        Assert.assertEquals(MigrationJob.STATE_AVAILABLE, mj.getStatus());
+        Assert.assertEquals("0,1000", mj.getQuery());
+    }
+}
@@ -0,0 +1,128 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.client.LightblueClientConfiguration;
+import com.redhat.lightblue.client.LightblueException;
+import com.redhat.lightblue.client.Locking;
+import com.redhat.lightblue.client.http.LightblueHttpClient;
+import com.redhat.lightblue.client.request.LightblueDataRequest;
+import com.redhat.lightblue.client.response.DefaultLightblueDataResponse;
+
+/**
+ * A lightblue client that doesn't talk to a server. Every request is
+ * recorded, and answered with the documents returned by respond(), by
+ * default none. Locks are kept in memory.
+ */
+public class ScriptedLightblueClient extends LightblueHttpClient {
+
+    /**
+     * A recorded request
+     */
+    public static class Request {
+        public final String entity;
+        public final String operation;
+        public final JsonNode body;
+
+        Request(String entity, String operation, JsonNode body) {
+            this.entity = entity;
+            this.operation = operation;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + entity + " " + body;
+        }
+    }
+
+    public final List<Request> requests = new ArrayList<>();
+    public final Set<String> locks = new HashSet<>();
+
+    public ScriptedLightblueClient() {
+        super(new LightblueClientConfiguration());
+    }
+
+    /**
+     * Returns the documents processed by the request. Override this to
+     * answer requests.
+     */
+    protected List<JsonNode> respond(Request req) throws LightblueException {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Returns the recorded requests for the entity and operation
+     */
+    public synchronized List<Request> getRequests(String entity, String operation) {
+        List<Request> ret = new ArrayList<>();
+        for (Request r : requests) {
+            if (r.entity.equals(entity) && r.operation.equals(operation)) {
+                ret.add(r);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public DefaultLightblueDataResponse data(LightblueDataRequest req) throws LightblueException {
+        Request r = new Request(req.getEntityName(), req.getOperationPathParam(), req.getBodyJson());
+        synchronized (this) {
+            requests.add(r);
+        }
+        List<JsonNode> docs = respond(r);
+        ObjectNode resp = JsonNodeFactory.instance.objectNode();
+        resp.put("status", "COMPLETE");
+        resp.put("modifiedCount", docs.size());
+        resp.put("matchCount", docs.size());
+        ArrayNode processed = resp.putArray("processed");
+        for (JsonNode doc : docs) {
+            processed.add(doc);
+        }
+        return new DefaultLightblueDataResponse(resp.toString());
+    }
+
+    @Override
+    public <T> T data(LightblueDataRequest req, Class<T> type) throws LightblueException {
+        return data(req).parseProcessed(type);
+    }
+
+    @Override
+    public Locking getLocking(String domain) {
+        return new Locking(domain) {
+            @Override
+            public boolean acquire(String callerId, String resourceId, Long ttl) {
+                synchronized (locks) {
+                    return locks.add(resourceId);
+                }
+            }
+
+            @Override
+            public boolean release(String callerId, String resourceId) {
+                synchronized (locks) {
+                    return locks.remove(resourceId);
+                }
+            }
+
+            @Override
+            public int getLockCount(String callerId, String resourceId) {
+                synchronized (locks) {
+                    return locks.contains(resourceId) ? 1 : 0;
+                }
+            }
+
+            @Override
+            public boolean ping(String callerId, String resourceId) {
+                return true;
+            }
+        };
+    }
+}
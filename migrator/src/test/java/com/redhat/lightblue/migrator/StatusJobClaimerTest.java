@@ -0,0 +1,171 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.client.LightblueClient;
+
+public class StatusJobClaimerTest {
+
+    private static final int N_JOBS = 10;
+
+    /**
+     * A job store whose updates are not atomic: a claim update matches its
+     * documents, waits until the other claimer matched too, and then writes.
+     * Like lightblue, each update returns the jobs as that update modified
+     * them, so both claimers see their own write. Finds return the jobs as
+     * stored, after both writes.
+     */
+    private static class RacyJobClient extends ScriptedLightblueClient {
+        final Map<String, ObjectNode> jobs = new TreeMap<>();
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        RacyJobClient() {
+            for (int i = 0; i < N_JOBS; i++) {
+                ObjectNode job = JsonNodeFactory.instance.objectNode();
+                job.put("_id", "job" + i);
+                job.put("status", MigrationJob.STATE_AVAILABLE);
+                jobs.put("job" + i, job);
+            }
+        }
+
+        @Override
+        protected List<JsonNode> respond(Request req) {
+            JsonNode query = req.body.get("query");
+            if (req.operation.equals("find")) {
+                return find(query);
+            } else if (req.operation.equals("update") && query.has("$and")
+                    && query.get("$and").get(0).has("values")) {
+                return claim(query, (ObjectNode) req.body.get("update").get("$set"));
+            }
+            return new ArrayList<>();
+        }
+
+        private List<JsonNode> claim(JsonNode query, ObjectNode set) {
+            List<JsonNode> ret = new ArrayList<>();
+            synchronized (jobs) {
+                for (JsonNode id : query.get("$and").get(0).get("values")) {
+                    ObjectNode job = jobs.get(id.asText());
+                    if (job != null && job.get("status").asText().equals(MigrationJob.STATE_AVAILABLE)) {
+                        ObjectNode modified = job.deepCopy();
+                        modified.setAll(set);
+                        ret.add(modified);
+                    }
+                }
+            }
+            try {
+                barrier.await();
+                synchronized (jobs) {
+                    for (JsonNode job : ret) {
+                        jobs.put(job.get("_id").asText(), ((ObjectNode) job).deepCopy());
+                    }
+                }
+                barrier.await();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return ret;
+        }
+
+        private List<JsonNode> find(JsonNode query) {
+            List<JsonNode> ret = new ArrayList<>();
+            String claimedBy = query.get("$and").get(1).get("rvalue").asText();
+            synchronized (jobs) {
+                for (JsonNode id : query.get("$and").get(0).get("values")) {
+                    ObjectNode job = jobs.get(id.asText());
+                    if (job != null && job.has("claimedBy") && job.get("claimedBy").asText().equals(claimedBy)) {
+                        ret.add(job.deepCopy());
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static MigratorController controller(final LightblueClient cli, String name) {
+        MainConfiguration mainCfg = new MainConfiguration() {
+            @Override
+            public LightblueClient getLightblueClient() {
+                return cli;
+            }
+        };
+        mainCfg.setName("test");
+        MigrationConfiguration cfg = InMemoryMigrator.config();
+        cfg.setJobClaimerClass(StatusJobClaimer.class.getName());
+        MigratorController ctl = new MigratorController(new Controller(mainCfg), cfg);
+        ctl.setName(name);
+        return ctl;
+    }
+
+    @Test(timeout = 30000)
+    public void racingClaimersTest() throws Exception {
+        RacyJobClient cli = new RacyJobClient();
+        final List<MigrationJob> candidates = new ArrayList<>();
+        for (String id : cli.jobs.keySet()) {
+            MigrationJob job = new MigrationJob();
+            job.set_id(id);
+            candidates.add(job);
+        }
+        final MigratorController[] controllers = {controller(cli, "claimer1"), controller(cli, "claimer2")};
+        final List<List<MigrationJob>> claimed = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+        Thread[] threads = new Thread[controllers.length];
+        for (int i = 0; i < threads.length; i++) {
+            final MigratorController ctl = controllers[i];
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<MigrationJob> jobs = ctl.getJobClaimer().claim(ctl, new ArrayList<>(candidates), N_JOBS);
+                        synchronized (claimed) {
+                            claimed.add(jobs);
+                        }
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertEquals(new ArrayList<Exception>(), errors);
+        // Both updates modified every job, but each job is claimed once
+        Assert.assertEquals(2, claimed.size());
+        Set<String> ids = new HashSet<>();
+        for (List<MigrationJob> jobs : claimed) {
+            for (MigrationJob job : jobs) {
+                Assert.assertTrue(ids.add(job.get_id()));
+            }
+        }
+        Assert.assertEquals(cli.jobs.keySet(), ids);
+
+        // A claimed job is given back with the token of its claim
+        MigrationJob job = claimed.get(0).isEmpty() ? claimed.get(1).get(0) : claimed.get(0).get(0);
+        JobClaimer claimer = null;
+        for (MigratorController ctl : controllers) {
+            if (job.getClaimedBy().startsWith(StatusJobClaimer.getOwner(ctl))) {
+                claimer = ctl.getJobClaimer();
+                claimer.unclaim(ctl, job.get_id());
+            }
+        }
+        Assert.assertNotNull(claimer);
+        JsonNode unclaim = cli.requests.get(cli.requests.size() - 1).body;
+        Assert.assertEquals(job.getClaimedBy(), unclaim.get("query").get("$and").get(2).get("rvalue").asText());
+    }
+}
@@ -0,0 +1,67 @@
+package com.redhat.lightblue.migrator;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThreadMonitorTest {
+
+    private static class Task implements MonitoredThread {
+        @Override
+        public void registerThreadMonitor(ThreadMonitor monitor) {
+        }
+
+        @Override
+        public void ping(String msg) {
+        }
+
+        @Override
+        public void notifyEnd() {
+        }
+    }
+
+    @Test
+    public void taskOnAnotherThreadTest() throws Exception {
+        final ThreadMonitor monitor = new ThreadMonitor(100);
+        final Task task = new Task();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final boolean[] killed = new boolean[2];
+        ThreadGroup group = new ThreadGroup("tasks");
+        ThreadGroup other = new ThreadGroup("other");
+        Thread runner = new Thread(group, new Runnable() {
+            @Override
+            public void run() {
+                monitor.beginTask(task);
+                try {
+                    monitor.ping("start");
+                    started.countDown();
+                    proceed.await();
+                    Thread.sleep(200);
+                    monitor.ping("late");
+                } catch (RuntimeException e) {
+                    killed[0] = true;
+                    killed[1] = Thread.currentThread().isInterrupted();
+                } catch (InterruptedException e) {
+                } finally {
+                    monitor.endThread();
+                }
+            }
+        });
+        runner.start();
+        started.await();
+        Assert.assertEquals(ThreadMonitor.Status.alive, monitor.getStatus(task));
+        Assert.assertEquals(1, monitor.getThreadCount(group, ThreadMonitor.Status.alive));
+        Assert.assertEquals(0, monitor.getThreadCount(other, ThreadMonitor.Status.alive));
+        Assert.assertEquals(0, monitor.getThreadCount(group, ThreadMonitor.Status.killed));
+
+        proceed.countDown();
+        runner.join();
+        // Timed out ping kills the task, and interrupts the thread running it
+        Assert.assertTrue(killed[0]);
+        Assert.assertTrue(killed[1]);
+        Assert.assertNull(monitor.getStatus(task));
+        Assert.assertEquals(0, monitor.getThreadCount(group, ThreadMonitor.Status.alive, ThreadMonitor.Status.killed));
+    }
+}